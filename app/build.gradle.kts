@@ -17,6 +17,11 @@ android {
         multiDexEnabled = true
 
         testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+
+        buildConfigField("String", "FIRESTORE_EMULATOR_HOST",
+            "\"${project.findProperty("firestoreEmulatorHost") ?: ""}\"")
+        buildConfigField("int", "FIRESTORE_EMULATOR_PORT",
+            "${project.findProperty("firestoreEmulatorPort") ?: 8080}")
     }
 
     buildTypes {
@@ -34,6 +39,7 @@ android {
     }
     buildFeatures {
         viewBinding = true
+        buildConfig = true
     }
 }
 
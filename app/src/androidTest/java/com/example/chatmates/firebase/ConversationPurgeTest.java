@@ -0,0 +1,136 @@
+package com.example.chatmates.firebase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.example.chatmates.BuildConfig;
+import com.example.chatmates.utilities.ChatMatesDatabase;
+import com.example.chatmates.utilities.Constants;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Source;
+import com.google.firebase.firestore.WriteBatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs {@link ConversationPurge} against the Firestore emulator. Skipped unless the build was
+ * configured with -PfirestoreEmulatorHost, which the application uses to point Firestore there.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConversationPurgeTest {
+
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final String OWNER_ID = "purge-test-owner";
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private FirebaseFirestore database;
+    private ChatMatesDatabase cacheDatabase;
+    private ScheduledExecutorService scheduler;
+    private String conversationId;
+    private CollectionReference messages;
+
+    @Before
+    public void setUp() {
+        assumeFalse("Needs the Firestore emulator", BuildConfig.FIRESTORE_EMULATOR_HOST.isEmpty());
+        database = FirebaseFirestore.getInstance();
+        cacheDatabase = new ChatMatesDatabase(InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        conversationId = "purge-test-" + UUID.randomUUID();
+        messages = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .document(conversationId)
+                .collection(Constants.KEY_COLLECTION_MESSAGES);
+    }
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            cacheDatabase.close();
+        }
+    }
+
+    @Test
+    public void purgesEverythingWrittenBeforeTheDeletionInChunks() throws Exception {
+        // More than one batch of messages stamped by the server, and a few legacy ones without
+        // updatedAt, all written before the deletion
+        writeMessages(600, true, new Date());
+        writeMessages(3, false, new Date(System.currentTimeMillis() - HOUR_MILLIS));
+        deleteConversation();
+        // Written after the deletion by a phone whose clock runs an hour behind
+        writeMessages(1, true, new Date(System.currentTimeMillis() - HOUR_MILLIS));
+
+        CountDownLatch purged = new CountDownLatch(1);
+        AtomicLong purgedCount = new AtomicLong();
+        AtomicInteger progressCount = new AtomicInteger();
+        ConversationPurge purge = new ConversationPurge(cacheDatabase, database, scheduler);
+        purge.setListener(new ConversationPurge.Listener() {
+            @Override
+            public void onProgress(String conversationId, long deletedCount, double messagesPerSecond) {
+                progressCount.incrementAndGet();
+            }
+
+            @Override
+            public void onPurged(String conversationId, long deletedCount) {
+                purgedCount.set(deletedCount);
+                purged.countDown();
+            }
+        });
+        purge.purge(conversationId, OWNER_ID);
+
+        assertTrue("Purge did not finish", purged.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(603, purgedCount.get());
+        assertTrue(progressCount.get() >= 3);
+        List<DocumentSnapshot> remaining = Tasks.await(messages.get(Source.SERVER), TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .getDocuments();
+        assertEquals(1, remaining.size());
+        assertNotNull(remaining.get(0).get(Constants.KEY_UPDATED_AT));
+    }
+
+    private void writeMessages(int count, boolean isStamped, Date timestamp) throws Exception {
+        WriteBatch batch = database.batch();
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && i % 500 == 0) {
+                Tasks.await(batch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                batch = database.batch();
+            }
+            HashMap<String, Object> message = new HashMap<>();
+            message.put(Constants.KEY_SENDER_ID, OWNER_ID);
+            message.put(Constants.KEY_RECEIVER_ID, "purge-test-peer");
+            message.put(Constants.KEY_MESSAGE, "message " + i);
+            message.put(Constants.KEY_TIMESTAMP, timestamp);
+            if (isStamped) {
+                message.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+            }
+            batch.set(messages.document(), message);
+        }
+        Tasks.await(batch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void deleteConversation() throws Exception {
+        WriteBatch batch = database.batch();
+        Inbox.putTombstone(batch, database, OWNER_ID, conversationId);
+        Tasks.await(batch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.example.chatmates.models.ChatMessage;
+import com.example.chatmates.utilities.ChatMatesDatabase;
+import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.MessageCache;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link MessageSync} against an in-memory database and a fake backend, with every executor
+ * running its tasks inline.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageSyncTest {
+
+    private static final String CONVERSATION_ID = "conversation";
+    private static final Executor INLINE = Runnable::run;
+
+    private ChatMatesDatabase database;
+    private MessageCache cache;
+    private FakeBackend backend;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        database = new ChatMatesDatabase(InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+        cache = new MessageCache(database, CONVERSATION_ID);
+        backend = new FakeBackend();
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void openSeedsTheCacheFromTheNewestPageAndListensFromItsWatermark() {
+        backend.latest = page(200, message("m1", 1000, "hello"), message("m2", 2000, "there"));
+
+        open();
+
+        assertEquals(1, backend.fetchLatestCount);
+        assertEquals(Arrays.asList("m1", "m2"), idsOf(listener.upserted));
+        assertTrue(cache.isSeeded());
+        assertEquals(200, cache.getWatermark());
+        assertEquals(200, backend.listenedSince);
+    }
+
+    @Test
+    public void openServesASeededCacheWithoutFetching() {
+        backend.latest = page(200, message("m1", 1000, "hello"));
+        open().remove();
+        listener = new RecordingListener();
+
+        open();
+
+        assertEquals(1, backend.fetchLatestCount);
+        assertEquals(Collections.singletonList("m1"), idsOf(listener.upserted));
+        assertEquals(200, backend.listenedSince);
+    }
+
+    @Test
+    public void changedMessagesAreStoredAndAdvanceTheWatermark() {
+        backend.latest = page(200, message("m1", 1000, "hello"));
+        open();
+
+        backend.push(page(300, message("m1", 1000, "edited"), message("m2", 2000, "new")));
+
+        assertEquals(Arrays.asList("m1", "m2"), idsOf(listener.upserted));
+        List<ChatMessage> cached = cache.loadLatest(Constants.MESSAGE_PAGE_SIZE);
+        assertEquals(Arrays.asList("m1", "m2"), idsOf(cached));
+        assertEquals("edited", cached.get(0).message);
+        assertEquals(300, cache.getWatermark());
+    }
+
+    @Test
+    public void tombstonesDropMessagesFromTheCache() {
+        backend.latest = page(200, message("m1", 1000, "hello"), message("m2", 2000, "there"));
+        open();
+
+        backend.push(new MessageSync.Page(new ArrayList<>(), Collections.singletonList("m1"), 400, 1, new Date(1000)));
+
+        assertEquals(Collections.singletonList("m1"), listener.removedIds);
+        assertEquals(Collections.singletonList("m2"), idsOf(cache.loadLatest(Constants.MESSAGE_PAGE_SIZE)));
+        assertEquals(400, cache.getWatermark());
+    }
+
+    @Test
+    public void unconfirmedOrOlderChangesNeverMoveTheWatermarkBack() {
+        backend.latest = page(200, message("m1", 1000, "hello"));
+        open();
+
+        // A local write whose server timestamp is still pending carries no watermark
+        backend.push(page(-1, message("m2", 2000, "pending")));
+        assertEquals(200, cache.getWatermark());
+        backend.push(page(100, message("m1", 1000, "late")));
+        assertEquals(200, cache.getWatermark());
+    }
+
+    @Test
+    public void aFailedSeedIsReportedAndLeavesTheCacheUnseeded() {
+        backend.latest = null;
+
+        open();
+
+        assertEquals(1, listener.failureCount);
+        assertFalse(cache.isSeeded());
+        assertEquals(-1, backend.listenedSince);
+    }
+
+    @Test
+    public void aRemovedRegistrationStopsTheLiveListener() {
+        backend.latest = page(200, message("m1", 1000, "hello"));
+        ListenerRegistration registration = open();
+        listener.upserted.clear();
+
+        registration.remove();
+        backend.push(page(300, message("m2", 2000, "late")));
+
+        assertTrue(backend.isListenerRemoved);
+        assertTrue(listener.upserted.isEmpty());
+    }
+
+    private ListenerRegistration open() {
+        return new MessageSync(cache, backend, INLINE, INLINE).open(listener);
+    }
+
+    private static MessageSync.Page page(long watermark, ChatMessage... messages) {
+        Date oldest = null;
+        for (ChatMessage message : messages) {
+            if (oldest == null || message.dateObject.before(oldest)) {
+                oldest = message.dateObject;
+            }
+        }
+        return new MessageSync.Page(new ArrayList<>(Arrays.asList(messages)), new ArrayList<>(), watermark,
+                messages.length, oldest);
+    }
+
+    private static ChatMessage message(String id, long timestamp, String text) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.sentMessageDocumentId = id;
+        chatMessage.senderId = "sender";
+        chatMessage.receiverId = "receiver";
+        chatMessage.message = text;
+        chatMessage.dateObject = new Date(timestamp);
+        return chatMessage;
+    }
+
+    private static List<String> idsOf(List<ChatMessage> messages) {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            ids.add(message.sentMessageDocumentId);
+        }
+        return ids;
+    }
+
+    private static class FakeBackend implements MessageSync.Backend {
+
+        @Nullable
+        MessageSync.Page latest;
+        int fetchLatestCount;
+        long listenedSince = -1;
+        boolean isListenerRemoved;
+        private MessageSync.PageCallback liveCallback;
+
+        @Override
+        public void fetchLatest(int limit, Executor executor, MessageSync.PageCallback callback) {
+            fetchLatestCount++;
+            executor.execute(() -> callback.onPage(latest));
+        }
+
+        @Override
+        public void fetchBefore(Date before, int limit, Executor executor, MessageSync.PageCallback callback) {
+            executor.execute(() -> callback.onPage(null));
+        }
+
+        @Override
+        public ListenerRegistration listenChangedSince(long watermark, Executor executor, MessageSync.PageCallback callback) {
+            listenedSince = watermark;
+            isListenerRemoved = false;
+            liveCallback = callback;
+            return () -> isListenerRemoved = true;
+        }
+
+        void push(MessageSync.Page page) {
+            if (!isListenerRemoved) {
+                liveCallback.onPage(page);
+            }
+        }
+    }
+
+    private static class RecordingListener implements MessageSync.Listener {
+
+        final List<ChatMessage> upserted = new ArrayList<>();
+        final List<String> removedIds = new ArrayList<>();
+        int failureCount;
+
+        @Override
+        public void onMessagesChanged(List<ChatMessage> upserted, List<String> removedIds) {
+            this.upserted.clear();
+            this.upserted.addAll(upserted);
+            this.removedIds.clear();
+            this.removedIds.addAll(removedIds);
+        }
+
+        @Override
+        public void onSyncFailed() {
+            failureCount++;
+        }
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.example.chatmates.models.OutgoingMessage;
+import com.example.chatmates.utilities.ChatMatesDatabase;
+import com.example.chatmates.utilities.OutboxStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link Outbox} against an in-memory database and a fake backend that records what the
+ * server would hold.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OutboxTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private ChatMatesDatabase database;
+    private OutboxStore store;
+    private FakeBackend backend;
+    private ScheduledExecutorService scheduler;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        database = new ChatMatesDatabase(InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+        store = new OutboxStore(database);
+        backend = new FakeBackend();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        database.close();
+    }
+
+    @Test
+    public void sendsMadeTogetherGoOutInOneCommit() throws Exception {
+        Outbox outbox = newOutbox();
+
+        outbox.enqueue(message("m1"));
+        outbox.enqueue(message("m2"));
+        outbox.enqueue(message("m3"));
+
+        assertEquals(Arrays.asList("m1", "m2", "m3"), listener.nextCommitted());
+        assertEquals(1, backend.commits.size());
+        assertEquals(0, outbox.getQueueDepth());
+        assertEquals(0, onScheduler(store::count).intValue());
+    }
+
+    @Test
+    public void aFailedCommitIsRetriedWithoutCountingItsMessagesTwice() throws Exception {
+        // The first commit lands on the server but is reported as failed
+        backend.failedResultsLeft = 1;
+        backend.isFailedCommitApplied = true;
+        Outbox outbox = newOutbox();
+
+        outbox.enqueue(message("m1"));
+        outbox.enqueue(message("m2"));
+
+        assertEquals(Arrays.asList("m1", "m2"), listener.nextFailed());
+        assertEquals(Arrays.asList("m1", "m2"), listener.nextCommitted());
+        assertEquals(2, backend.commits.size());
+        assertEquals(2, backend.unreadCount);
+        assertEquals(0, outbox.getQueueDepth());
+    }
+
+    @Test
+    public void aRetriedCommitKeepsAnEditMadeSinceTheFailedOneLanded() throws Exception {
+        // The first commit lands but is reported as failed, and the message is edited on the
+        // server before the outbox tries again
+        backend.failedResultsLeft = 1;
+        backend.isFailedCommitApplied = true;
+        backend.afterFailedCommit = () -> backend.storedMessages.put("m1", "edited");
+        Outbox outbox = newOutbox();
+
+        outbox.enqueue(message("m1"));
+
+        assertEquals(Collections.singletonList("m1"), listener.nextFailed());
+        assertEquals(Collections.singletonList("m1"), listener.nextCommitted());
+        assertEquals(2, backend.commits.size());
+        assertEquals("edited", backend.storedMessages.get("m1"));
+        assertEquals(1, backend.unreadCount);
+    }
+
+    @Test
+    public void aRejectedMessageIsParkedWithoutHoldingUpTheRest() throws Exception {
+        backend.rejectedIds.add("bad");
+        Outbox outbox = newOutbox();
+
+        outbox.enqueue(message("good1"));
+        outbox.enqueue(message("bad"));
+        outbox.enqueue(message("good2"));
+
+        Set<String> committed = new HashSet<>(listener.nextCommitted());
+        assertEquals(Collections.singletonList("bad"), listener.nextFailed());
+        committed.addAll(listener.nextCommitted());
+        assertEquals(new HashSet<>(Arrays.asList("good1", "good2")), committed);
+        assertEquals(0, outbox.getQueueDepth());
+        List<OutgoingMessage> queued = onScheduler(() -> store.loadForConversation("conversation"));
+        assertEquals(1, queued.size());
+        assertTrue(queued.get(0).isParked);
+    }
+
+    @Test
+    public void retryQueuesAParkedMessageAgain() throws Exception {
+        backend.rejectedIds.add("bad");
+        Outbox outbox = newOutbox();
+        outbox.enqueue(message("bad"));
+        assertEquals(Collections.singletonList("bad"), listener.nextFailed());
+
+        backend.rejectedIds.clear();
+        outbox.retry(Collections.singletonList("bad"));
+
+        assertEquals(Collections.singletonList("bad"), listener.nextCommitted());
+        assertEquals(0, onScheduler(() -> store.loadForConversation("conversation")).size());
+    }
+
+    @Test
+    public void theQueueLeftByAPreviousRunIsFlushed() throws Exception {
+        store.add(message("m1"));
+
+        Outbox outbox = newOutbox();
+        outbox.flush();
+
+        assertEquals(Collections.singletonList("m1"), listener.nextCommitted());
+        assertEquals(0, outbox.getQueueDepth());
+    }
+
+    private Outbox newOutbox() {
+        Outbox outbox = new Outbox(store, backend, scheduler);
+        outbox.addListener(listener);
+        return outbox;
+    }
+
+    private <T> T onScheduler(Callable<T> task) throws Exception {
+        return scheduler.submit(task).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static OutgoingMessage message(String id) {
+        OutgoingMessage outgoingMessage = new OutgoingMessage();
+        outgoingMessage.conversationId = "conversation";
+        outgoingMessage.messageId = id;
+        outgoingMessage.senderId = "sender";
+        outgoingMessage.receiverId = "receiver";
+        outgoingMessage.message = "text of " + id;
+        outgoingMessage.dateObject = new Date();
+        return outgoingMessage;
+    }
+
+    /**
+     * Holds the messages the server stored, leaves those it already has untouched and counts
+     * each new one as unread once, as the Firestore backend does.
+     */
+    private static class FakeBackend implements Outbox.Backend {
+
+        final List<List<String>> commits = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> rejectedIds = Collections.synchronizedSet(new HashSet<>());
+        final Map<String, String> storedMessages = new ConcurrentHashMap<>();
+        volatile int failedResultsLeft;
+        volatile boolean isFailedCommitApplied;
+        @Nullable
+        volatile Runnable afterFailedCommit;
+        volatile int unreadCount;
+
+        @Override
+        public void commit(List<OutgoingMessage> messages, Outbox.CommitCallback callback) {
+            List<String> ids = new ArrayList<>();
+            for (OutgoingMessage outgoingMessage : messages) {
+                ids.add(outgoingMessage.messageId);
+            }
+            commits.add(ids);
+            for (String id : ids) {
+                if (rejectedIds.contains(id)) {
+                    callback.onCommitted(Outbox.RESULT_REJECTED);
+                    return;
+                }
+            }
+            boolean isFailed = failedResultsLeft > 0;
+            if (isFailed) {
+                failedResultsLeft--;
+            }
+            if (!isFailed || isFailedCommitApplied) {
+                for (OutgoingMessage outgoingMessage : messages) {
+                    if (storedMessages.putIfAbsent(outgoingMessage.messageId, outgoingMessage.message) == null) {
+                        unreadCount++;
+                    }
+                }
+            }
+            if (isFailed && afterFailedCommit != null) {
+                afterFailedCommit.run();
+            }
+            callback.onCommitted(isFailed ? Outbox.RESULT_FAILED : Outbox.RESULT_COMMITTED);
+        }
+    }
+
+    private static class RecordingListener implements Outbox.Listener {
+
+        private final BlockingQueue<List<String>> committed = new LinkedBlockingQueue<>();
+        private final BlockingQueue<List<String>> failed = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onCommitted(List<String> messageIds) {
+            committed.add(messageIds);
+        }
+
+        @Override
+        public void onCommitFailed(List<String> messageIds) {
+            failed.add(messageIds);
+        }
+
+        List<String> nextCommitted() throws InterruptedException {
+            return next(committed);
+        }
+
+        List<String> nextFailed() throws InterruptedException {
+            return next(failed);
+        }
+
+        private static List<String> next(BlockingQueue<List<String>> queue) throws InterruptedException {
+            List<String> messageIds = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for the outbox", messageIds);
+            return messageIds;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.example.chatmates;
+
+import android.app.Application;
+
+import com.example.chatmates.firebase.ConversationPurge;
+import com.example.chatmates.firebase.Outbox;
+import com.example.chatmates.utilities.AvatarDiskCache;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+public class ChatMatesApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AvatarDiskCache.init(this);
+        // Point Firestore at a local emulator when the build was configured with -PfirestoreEmulatorHost
+        if (!BuildConfig.FIRESTORE_EMULATOR_HOST.isEmpty()) {
+            FirebaseFirestore.getInstance().useEmulator(
+                    BuildConfig.FIRESTORE_EMULATOR_HOST,
+                    BuildConfig.FIRESTORE_EMULATOR_PORT
+            );
+        }
+        Outbox.init(this);
+        ConversationPurge.init(this);
+    }
+
+}
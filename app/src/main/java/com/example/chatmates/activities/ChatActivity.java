@@ -2,12 +2,11 @@ package com.example.chatmates.activities;
 
 import android.app.AlertDialog;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
-import android.util.Base64;
 import android.view.View;
 import android.widget.Toast;
 
@@ -18,45 +17,93 @@ import androidx.core.content.ContextCompat;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
 import androidx.recyclerview.widget.ItemTouchHelper;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
-import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.example.chatmates.R;
 import com.example.chatmates.adapters.ChatAdapter;
 import com.example.chatmates.databinding.ActivityChatBinding;
+import com.example.chatmates.firebase.FirestoreMessageBackend;
+import com.example.chatmates.firebase.Inbox;
+import com.example.chatmates.firebase.ListenerRegistry;
+import com.example.chatmates.firebase.MessageSync;
+import com.example.chatmates.firebase.Outbox;
 import com.example.chatmates.models.ChatMessage;
+import com.example.chatmates.models.OutgoingMessage;
 import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.AppExecutors;
+import com.example.chatmates.utilities.AvatarLoader;
+import com.example.chatmates.utilities.ChatMatesDatabase;
 import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.ConversationKeys;
+import com.example.chatmates.utilities.MessageCache;
+import com.example.chatmates.utilities.MessageStore;
 import com.example.chatmates.utilities.PreferenceManager;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class ChatActivity extends BaseActivity {
 
+    // A batch holds 500 writes; the last chunk also updates the conversation and both inboxes
+    private static final int DELETES_PER_BATCH = 450;
+    private static final long INITIAL_SYNC_RETRY_MILLIS = 1000;
+    private static final long MAX_SYNC_RETRY_MILLIS = 60_000;
+
     private ActivityChatBinding binding;
     private User receiverUser;
-    private List<ChatMessage> chatMessages;
+    private MessageStore messageStore;
     private ChatAdapter chatAdapter;
     private PreferenceManager preferenceManager;
     private FirebaseFirestore database;
+    private String currentUserId;
+    private final ListenerRegistry listenerRegistry = new ListenerRegistry(this);
     private String conversionId = null;
     private Boolean isReceiverAvailable = false;
     private String isSentMessageSwipedId = null;
+    private boolean isLoadingOlderMessages = false;
+    private boolean hasOlderMessages = true;
+    private DocumentReference conversationReference;
+    private CollectionReference messagesCollection;
+    private MessageSync messageSync;
+    private final Handler syncRetryHandler = new Handler(Looper.getMainLooper());
+    private int failedSyncAttempts = 0;
+    // Set when a message from the receiver arrives while the chat is open; anything older is
+    // covered by the count read in checkForConversion()
+    private final Date openedAt = new Date();
+    private boolean hasUnreadSinceRead = false;
+    // Messages sent from this device that the outbox has not committed yet, and whether their
+    // last commit failed. Their bubbles keep that state until the outbox confirms them.
+    private final Map<String, Integer> outgoingStates = new HashMap<>();
+    // Formats the echoes of sent messages; only touched on the main thread
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.getDefault());
+    private final Outbox.Listener outboxListener = new Outbox.Listener() {
+        @Override
+        public void onCommitted(List<String> messageIds) {
+            AppExecutors.runOnMainThread(() -> updateOutgoingStates(messageIds, ChatMessage.STATE_SENT));
+        }
+
+        @Override
+        public void onCommitFailed(List<String> messageIds) {
+            AppExecutors.runOnMainThread(() -> updateOutgoingStates(messageIds, ChatMessage.STATE_FAILED));
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -67,13 +114,6 @@ public class ChatActivity extends BaseActivity {
         loadReceivedDetail();
         init();
         listenMessages();
-        binding.main.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
-            @Override
-            public void onRefresh() {
-                // Refresh the activity
-                reloadActivity();
-            }
-        });
         binding.inputMessage.addTextChangedListener(new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
@@ -97,30 +137,60 @@ public class ChatActivity extends BaseActivity {
         binding.layoutSend.setAlpha(0.5f);
     }
 
-    private void reloadActivity() {
-        // Clear previous messages and refresh the chat
-        chatMessages.clear();
-        chatAdapter.notifyDataSetChanged();
-
-        // Re-initialize data or reload it as needed (e.g., listen for new messages)
-        listenMessages();
-
-        // Stop the refreshing animation
-        binding.main.setRefreshing(false);
-    }
-
     private void init() {
         preferenceManager = new PreferenceManager(getApplicationContext());
-        chatMessages = new ArrayList<>();
+        currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        messageStore = new MessageStore();
         chatAdapter = new ChatAdapter(
-                chatMessages,
-                getBitmapFromEncodedString(receiverUser.image),
-                preferenceManager.getString(Constants.KEY_USER_ID),
-                this::showDeleteConfirmationDialog
+                messageStore,
+                receiverUser.imageHash,
+                receiverUser.image,
+                currentUserId,
+                new ChatAdapter.MessageActionListener() {
+                    @Override
+                    public void onSelectionChanged(int selectedCount) {
+                        updateSelection(selectedCount);
+                    }
+
+                    @Override
+                    public void onRetryClicked(ChatMessage chatMessage) {
+                        retryFailedMessages();
+                    }
+                }
         );
         binding.chatRecyclerView.setAdapter(chatAdapter);
+        messageStore.setUpdateCallback(new AdapterListUpdateCallback(chatAdapter));
         database = FirebaseFirestore.getInstance();
+        conversationReference = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .document(ConversationKeys.of(currentUserId, receiverUser.id));
+        messagesCollection = conversationReference.collection(Constants.KEY_COLLECTION_MESSAGES);
+        messageSync = new MessageSync(
+                new MessageCache(ChatMatesDatabase.getInstance(getApplicationContext()), conversationReference.getId()),
+                new FirestoreMessageBackend(messagesCollection),
+                AppExecutors.snapshotParser(),
+                AppExecutors::runOnMainThread
+        );
+        Outbox.getInstance().addListener(outboxListener);
+        showQueuedMessages();
+        checkForConversion();
         setupSwipeToLeft();
+        setupLoadOlderOnScroll();
+    }
+
+    private void setupLoadOlderOnScroll() {
+        binding.chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy >= 0) {
+                    return; // Only page when the user scrolls up towards older messages
+                }
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager != null
+                        && layoutManager.findFirstVisibleItemPosition() <= Constants.MESSAGE_PREFETCH_DISTANCE) {
+                    loadOlderMessages();
+                }
+            }
+        });
     }
 
     private void setupSwipeToLeft() {
@@ -130,11 +200,26 @@ public class ChatActivity extends BaseActivity {
                 return false; // We don't support moving items
             }
 
+            @Override
+            public int getSwipeDirs(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder) {
+                // Only the user's own messages that reached the server can be edited; a pending or
+                // failed echo has no document to update yet
+                int position = viewHolder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return 0;
+                }
+                ChatMessage message = messageStore.get(position);
+                if (!currentUserId.equals(message.senderId) || message.deliveryState != ChatMessage.STATE_SENT) {
+                    return 0;
+                }
+                return super.getSwipeDirs(recyclerView, viewHolder);
+            }
+
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
                 if (direction == ItemTouchHelper.LEFT) {
                     int position = viewHolder.getAdapterPosition();
-                    ChatMessage swipedMessage = chatMessages.get(position);
+                    ChatMessage swipedMessage = messageStore.get(position);
                     String documentId = swipedMessage.sentMessageDocumentId;
                     String messageContent = swipedMessage.message;
 
@@ -162,22 +247,14 @@ public class ChatActivity extends BaseActivity {
             // Create a map for the updated message
             HashMap<String, Object> updatedMessageMap = new HashMap<>();
             updatedMessageMap.put(Constants.KEY_MESSAGE, updatedMessage);
-            updatedMessageMap.put(Constants.KEY_TIMESTAMP, new Date()); // Update timestamp if needed
+            updatedMessageMap.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
 
             // Update the message in Firestore
-            database.collection(Constants.KEY_COLLECTION_CHAT)
-                    .document(isSentMessageSwipedId)
+            messagesCollection.document(isSentMessageSwipedId)
                     .update(updatedMessageMap)
                     .addOnCompleteListener(task -> {
                         if (task.isSuccessful()) {
-                            // If successful, update the message locally in the chat
-                            for (ChatMessage message : chatMessages) {
-                                if (message.sentMessageDocumentId.equals(isSentMessageSwipedId)) {
-                                    message.message = updatedMessage;
-                                    break;
-                                }
-                            }
-                            chatAdapter.notifyDataSetChanged(); // Notify adapter to refresh the chat view
+                            // The edited message reaches the chat through the snapshot listener
                             updateConversion(preferenceManager.getString(Constants.KEY_NAME) + ": " + updatedMessage);
                             binding.inputMessage.setText(""); // Clear the input field
                             isSentMessageSwipedId = null; // Reset the swiped message ID
@@ -189,66 +266,184 @@ public class ChatActivity extends BaseActivity {
         }
     }
 
-    private void showDeleteConfirmationDialog(ChatMessage chatMessage) {
+    private void showDeleteConfirmationDialog(Set<String> messageIds) {
         new AlertDialog.Builder(this)
-                .setTitle("Delete Message")
-                .setMessage("Are you sure you want to delete this message?")
-                .setPositiveButton("Yes", (dialog, which) -> deleteMessage(chatMessage))
+                .setTitle(messageIds.size() == 1 ? "Delete Message" : "Delete Messages")
+                .setMessage(messageIds.size() == 1
+                        ? "Are you sure you want to delete this message?"
+                        : "Are you sure you want to delete these " + messageIds.size() + " messages?")
+                .setPositiveButton("Yes", (dialog, which) -> deleteMessages(messageIds))
                 .setNegativeButton("No", null)
                 .show();
     }
 
-    private void deleteMessage(ChatMessage chatMessage) {
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo(Constants.KEY_SENDER_ID, chatMessage.senderId)
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, chatMessage.receiverId)
-                .whereEqualTo(Constants.KEY_MESSAGE, chatMessage.message)
-                .get()
-                .addOnSuccessListener(queryDocumentSnapshots -> {
-                    if (!queryDocumentSnapshots.isEmpty()) {
-                        for (DocumentSnapshot snapshot : queryDocumentSnapshots.getDocuments()) {
-                            snapshot.getReference().delete();
-                        }
-                        chatMessages.remove(chatMessage);
-                        updateConversion(preferenceManager.getString(Constants.KEY_NAME) + " deleted a message");
-                        chatAdapter.notifyDataSetChanged();
-                    }
-                });
+    private void deleteMessages(Set<String> messageIds) {
+        // The rows go right away; a chunk that fails to commit puts its messages back
+        Map<String, ChatMessage> removedMessages = new HashMap<>();
+        for (ChatMessage chatMessage : messageStore.removeAll(messageIds)) {
+            removedMessages.put(chatMessage.sentMessageDocumentId, chatMessage);
+        }
+        chatAdapter.clearSelection();
+        List<String> deletedIds = new ArrayList<>(removedMessages.keySet());
+        if (deletedIds.isEmpty()) {
+            return;
+        }
+        String lastMessage = preferenceManager.getString(Constants.KEY_NAME) + (deletedIds.size() == 1
+                ? " deleted a message" : " deleted " + deletedIds.size() + " messages");
+        for (int start = 0; start < deletedIds.size(); start += DELETES_PER_BATCH) {
+            List<String> chunk = deletedIds.subList(start, Math.min(start + DELETES_PER_BATCH, deletedIds.size()));
+            WriteBatch batch = database.batch();
+            for (String messageId : chunk) {
+                // The tombstone tells every other device, and this one's cache, to drop the message
+                batch.update(messagesCollection.document(messageId), FirestoreMessageBackend.tombstone());
+            }
+            if (start + DELETES_PER_BATCH >= deletedIds.size()) {
+                putConversionUpdate(batch, lastMessage);
+            }
+            batch.commit().addOnFailureListener(exception -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                for (String messageId : chunk) {
+                    messageStore.upsert(removedMessages.get(messageId));
+                }
+                Toast.makeText(ChatActivity.this, "Failed to delete " + chunk.size() + " messages", Toast.LENGTH_SHORT).show();
+            });
+        }
     }
 
-    private void sendMessage() {
-        HashMap<String, Object> message = new HashMap<>();
-        message.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-        message.put(Constants.KEY_RECEIVER_ID, receiverUser.id);
-        message.put(Constants.KEY_MESSAGE, binding.inputMessage.getText().toString());
-        message.put(Constants.KEY_TIMESTAMP, new Date());
-        database.collection(Constants.KEY_COLLECTION_CHAT).add(message);
-        if (conversionId != null) {
-            updateConversion(preferenceManager.getString(Constants.KEY_NAME) + ": " + binding.inputMessage.getText().toString());
+    private void updateSelection(int selectedCount) {
+        if (selectedCount > 0) {
+            binding.textName.setText(selectedCount + " selected");
+            binding.imageDeleteSelected.setVisibility(View.VISIBLE);
         } else {
-            HashMap<String, Object> conversion = new HashMap<>();
-            conversion.put(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID));
-            conversion.put(Constants.KEY_SENDER_NAME, preferenceManager.getString(Constants.KEY_NAME));
-            conversion.put(Constants.KEY_SENDER_IMAGE, preferenceManager.getString(Constants.KEY_IMAGE));
-            conversion.put(Constants.KEY_RECEIVER_ID, receiverUser.id);
-            conversion.put(Constants.KEY_RECEIVER_NAME, receiverUser.name);
-            conversion.put(Constants.KEY_RECEIVER_IMAGE, receiverUser.image);
-            conversion.put(Constants.KEY_SENDER_EMAIL, preferenceManager.getString(Constants.KEY_EMAIL));
-            conversion.put(Constants.KEY_RECEIVER_EMAIL, receiverUser.email);
-            conversion.put(Constants.KEY_LAST_MESSAGE, preferenceManager.getString(Constants.KEY_NAME) + ": " + binding.inputMessage.getText().toString());
-            conversion.put(Constants.KEY_TIMESTAMP, new Date());
-            addConversion(conversion);
+            binding.textName.setText(receiverUser.name);
+            binding.imageDeleteSelected.setVisibility(View.GONE);
         }
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (chatAdapter.isSelecting()) {
+            chatAdapter.clearSelection();
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    private void sendMessage() {
+        // The outbox writes the message, the conversation summary and both inboxes in one commit
+        // and keeps retrying until it lands, even across restarts
+        OutgoingMessage outgoingMessage = new OutgoingMessage();
+        outgoingMessage.conversationId = conversationReference.getId();
+        outgoingMessage.messageId = messagesCollection.document().getId();
+        outgoingMessage.senderId = currentUserId;
+        outgoingMessage.receiverId = receiverUser.id;
+        outgoingMessage.message = binding.inputMessage.getText().toString();
+        outgoingMessage.dateObject = new Date();
+        outgoingMessage.isNewConversation = conversionId == null;
+        outgoingMessage.senderName = preferenceManager.getString(Constants.KEY_NAME);
+        outgoingMessage.senderEmail = preferenceManager.getString(Constants.KEY_EMAIL);
+        outgoingMessage.senderImageHash = preferenceManager.getString(Constants.KEY_IMAGE_HASH);
+        outgoingMessage.receiverName = receiverUser.name;
+        outgoingMessage.receiverEmail = receiverUser.email;
+        outgoingMessage.receiverImageHash = receiverUser.imageHash;
+        Outbox.getInstance().enqueue(outgoingMessage);
+        conversionId = conversationReference.getId();
         binding.inputMessage.setText(null);
+        // Shown at once; the copy from the server later lands on the same id and timestamp, so
+        // it replaces the bubble in place
+        outgoingStates.put(outgoingMessage.messageId, ChatMessage.STATE_PENDING);
+        messageStore.upsert(toEcho(outgoingMessage, ChatMessage.STATE_PENDING));
+        binding.chatRecyclerView.setVisibility(View.VISIBLE);
+        binding.chatRecyclerView.smoothScrollToPosition(messageStore.size() - 1);
+    }
+
+    /**
+     * Shows the messages a previous visit sent that are still waiting in the outbox.
+     */
+    private void showQueuedMessages() {
+        Outbox.getInstance().loadQueued(conversationReference.getId(), queuedMessages -> AppExecutors.runOnMainThread(() -> {
+            if (isDestroyed()) {
+                return;
+            }
+            for (OutgoingMessage outgoingMessage : queuedMessages) {
+                if (!outgoingStates.containsKey(outgoingMessage.messageId)) {
+                    // A parked message was rejected by the server and waits for a tap to retry
+                    int deliveryState = outgoingMessage.isParked ? ChatMessage.STATE_FAILED : ChatMessage.STATE_PENDING;
+                    outgoingStates.put(outgoingMessage.messageId, deliveryState);
+                    messageStore.upsert(toEcho(outgoingMessage, deliveryState));
+                }
+            }
+            if (!queuedMessages.isEmpty()) {
+                binding.chatRecyclerView.setVisibility(View.VISIBLE);
+            }
+        }));
+    }
+
+    private ChatMessage toEcho(OutgoingMessage outgoingMessage, int deliveryState) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.senderId = outgoingMessage.senderId;
+        chatMessage.receiverId = outgoingMessage.receiverId;
+        chatMessage.message = outgoingMessage.message;
+        chatMessage.dateObject = outgoingMessage.dateObject;
+        chatMessage.dateTime = dateFormat.format(outgoingMessage.dateObject);
+        chatMessage.sentMessageDocumentId = outgoingMessage.messageId;
+        chatMessage.deliveryState = deliveryState;
+        return chatMessage;
+    }
+
+    private void updateOutgoingStates(List<String> messageIds, int deliveryState) {
+        if (isDestroyed()) {
+            return;
+        }
+        for (String messageId : messageIds) {
+            if (deliveryState == ChatMessage.STATE_SENT) {
+                outgoingStates.remove(messageId);
+            } else if (outgoingStates.containsKey(messageId)) {
+                outgoingStates.put(messageId, deliveryState);
+            }
+            ChatMessage shown = messageStore.findById(messageId);
+            if (shown != null && shown.deliveryState != deliveryState) {
+                messageStore.upsert(withDeliveryState(shown, deliveryState));
+            }
+        }
+    }
+
+    private void retryFailedMessages() {
+        List<String> failedIds = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : outgoingStates.entrySet()) {
+            if (entry.getValue() == ChatMessage.STATE_FAILED) {
+                failedIds.add(entry.getKey());
+            }
+        }
+        updateOutgoingStates(failedIds, ChatMessage.STATE_PENDING);
+        Outbox.getInstance().retry(failedIds);
+    }
+
+    /**
+     * Shown messages are never mutated, a state change replaces the message with a copy.
+     */
+    private static ChatMessage withDeliveryState(ChatMessage chatMessage, int deliveryState) {
+        ChatMessage updated = new ChatMessage();
+        updated.senderId = chatMessage.senderId;
+        updated.receiverId = chatMessage.receiverId;
+        updated.message = chatMessage.message;
+        updated.dateObject = chatMessage.dateObject;
+        updated.dateTime = chatMessage.dateTime;
+        updated.sentMessageDocumentId = chatMessage.sentMessageDocumentId;
+        updated.deliveryState = deliveryState;
+        return updated;
     }
 
     /* *****************************************
     *  START OF CODE CHALLENGE IMPLEMENTATION  *
     ******************************************  */
     private void listenAvailabilityOfReceiver() {
-        database.collection(Constants.KEY_COLLECTION_USERS).document(
+        // onResume can run several times per onStop, so the key keeps this to a single listener
+        listenerRegistry.register(availabilityListenerKey(), () -> database.collection(Constants.KEY_COLLECTION_USERS).document(
                 receiverUser.id
-        ).addSnapshotListener(ChatActivity.this, (value, error) -> {
+        ).addSnapshotListener((value, error) -> {
             if (error != null) {
                 return;
             }
@@ -262,7 +457,11 @@ public class ChatActivity extends BaseActivity {
                 receiverUser.token = value.getString(Constants.KEY_FCM_TOKEN);
             }
             updateAvailabilityUI(isReceiverAvailable);
-        });
+        }));
+    }
+
+    private String availabilityListenerKey() {
+        return "availability/" + receiverUser.id;
     }
 
     private void updateAvailabilityUI(boolean isReceiverAvailable) {
@@ -283,85 +482,99 @@ public class ChatActivity extends BaseActivity {
      ****************************************** */
 
     private void listenMessages() {
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, receiverUser.id)
-                .addSnapshotListener(eventListener);
-        database.collection(Constants.KEY_COLLECTION_CHAT)
-                .whereEqualTo(Constants.KEY_SENDER_ID, receiverUser.id)
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .addSnapshotListener(eventListener);
-    }
-
-    private final EventListener<QuerySnapshot> eventListener = (value, error) -> {
-        if (error != null) {
+        // Renders the chat from disk, then listens only for messages changed since the last visit
+        listenerRegistry.register(messagesCollection.getPath(), () -> messageSync.open(new MessageSync.Listener() {
+            @Override
+            public void onMessagesChanged(List<ChatMessage> upserted, List<String> removedIds) {
+                if (isDestroyed()) {
+                    return;
+                }
+                failedSyncAttempts = 0;
+                applyMessageChanges(true, upserted, removedIds);
+            }
+
+            @Override
+            public void onSyncFailed() {
+                if (isDestroyed()) {
+                    return;
+                }
+                applyMessageChanges(false, new ArrayList<>(), new ArrayList<>());
+                retryListenMessages();
+            }
+        }));
+    }
+
+    /**
+     * A failed sync leaves no live listener behind, so the chat is opened again with backoff.
+     */
+    private void retryListenMessages() {
+        listenerRegistry.remove(messagesCollection.getPath());
+        failedSyncAttempts++;
+        long delayMillis = Math.min(INITIAL_SYNC_RETRY_MILLIS << Math.min(failedSyncAttempts - 1, 16), MAX_SYNC_RETRY_MILLIS);
+        syncRetryHandler.removeCallbacksAndMessages(null);
+        syncRetryHandler.postDelayed(this::listenMessages, delayMillis);
+    }
+
+    private void loadOlderMessages() {
+        if (isLoadingOlderMessages || !hasOlderMessages || messageStore.isEmpty()) {
             return;
         }
-        if (value != null) {
-            int count = chatMessages.size();
-            for (DocumentChange documentChange : value.getDocumentChanges()) {
-                if (documentChange.getType() == DocumentChange.Type.ADDED) {
-                    ChatMessage chatMessage = new ChatMessage();
-                    chatMessage.senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                    chatMessage.receiverId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
-                    chatMessage.message = documentChange.getDocument().getString(Constants.KEY_MESSAGE);
-                    chatMessage.dateTime = getReadableDateTime(documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP));
-                    chatMessage.dateObject = documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP);
-                    chatMessage.sentMessageDocumentId = documentChange.getDocument().getId();
-                    chatMessages.add(chatMessage);
-                } else if (documentChange.getType() == DocumentChange.Type.MODIFIED) {
-                    String modifiedMessageId = documentChange.getDocument().getId();
-                    String modifiedMessageContent = documentChange.getDocument().getString(Constants.KEY_MESSAGE);
-
-                    for (ChatMessage message : chatMessages) {
-                        if (message.sentMessageDocumentId.equals(modifiedMessageId)) {
-                            message.message = modifiedMessageContent; // Update the message content
-                            chatAdapter.notifyDataSetChanged(); // Refresh the adapter
-                            break;
-                        }
-                    }
-                } else if (documentChange.getType() == DocumentChange.Type.REMOVED) {
-                    String removedMessageId = documentChange.getDocument().getId();
-
-                    for (int i = 0; i < chatMessages.size(); i++) {
-                        if (chatMessages.get(i).sentMessageDocumentId.equals(removedMessageId)) {
-                            chatMessages.remove(i); // Remove the message from the list
-                            chatAdapter.notifyItemRemoved(i); // Notify the adapter about the removed item
-                            break;
-                        }
-                    }
+        isLoadingOlderMessages = true;
+        messageSync.loadOlder(messageStore.get(0).dateObject, new MessageSync.OlderMessagesCallback() {
+            @Override
+            public void onOlderMessages(List<ChatMessage> messages, boolean hasOlder) {
+                isLoadingOlderMessages = false;
+                if (isDestroyed()) {
+                    return;
                 }
+                hasOlderMessages = hasOlder;
+                // Every page is strictly older than what is loaded, so it lands as one insert on top
+                messageStore.addAll(messages);
             }
-            Collections.sort(chatMessages, (obj1, obj2) -> obj1.dateObject.compareTo(obj2.dateObject));
-            if (count == 0) {
-                chatAdapter.notifyDataSetChanged();
-            } else {
-                chatAdapter.notifyItemRangeInserted(chatMessages.size(), chatMessages.size());
-                binding.chatRecyclerView.smoothScrollToPosition(chatMessages.size() - 1);
+
+            @Override
+            public void onFailed() {
+                isLoadingOlderMessages = false;
+            }
+        });
+    }
+
+    private void applyMessageChanges(boolean hasSnapshot, List<ChatMessage> upsertedMessages, List<String> removedMessageIds) {
+        if (hasSnapshot) {
+            ChatMessage previousNewest = messageStore.isEmpty() ? null : messageStore.get(messageStore.size() - 1);
+            for (String removedMessageId : removedMessageIds) {
+                messageStore.remove(removedMessageId);
+            }
+            for (ChatMessage chatMessage : upsertedMessages) {
+                Integer outgoingState = outgoingStates.get(chatMessage.sentMessageDocumentId);
+                if (outgoingState != null && outgoingState != chatMessage.deliveryState) {
+                    chatMessage = withDeliveryState(chatMessage, outgoingState);
+                }
+                messageStore.upsert(chatMessage);
+                if (receiverUser.id.equals(chatMessage.senderId) && chatMessage.dateObject != null
+                        && chatMessage.dateObject.after(openedAt)) {
+                    hasUnreadSinceRead = true;
+                }
+            }
+            if (previousNewest != null && !messageStore.isEmpty()
+                    && !messageStore.get(messageStore.size() - 1).sentMessageDocumentId
+                    .equals(previousNewest.sentMessageDocumentId)) {
+                binding.chatRecyclerView.smoothScrollToPosition(messageStore.size() - 1);
             }
             binding.chatRecyclerView.setVisibility(View.VISIBLE);
         }
         binding.progressBar.setVisibility(View.GONE);
-        if (conversionId == null) {
-            checkForConversion();
-        }
-    };
-
-    private Bitmap getBitmapFromEncodedString(String encodedImage) {
-        byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
     }
 
     private void loadReceivedDetail() {
         receiverUser = (User) getIntent().getSerializableExtra(Constants.KEY_USER);
         binding.textName.setText(receiverUser.name);
-        byte[] bytes = Base64.decode(receiverUser.image, Base64.DEFAULT);
-        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        binding.imageUser.setImageBitmap(bitmap);
+        AvatarLoader.load(binding.imageUser, receiverUser.imageHash, receiverUser.image);
     }
 
     private void setListeners() {
         binding.imageBack.setOnClickListener(v -> onBackPressed());
+        binding.imageDeleteSelected.setOnClickListener(v -> showDeleteConfirmationDialog(chatAdapter.getSelectedIds()));
         binding.layoutSend.setOnClickListener(v -> {
             if (isSentMessageSwipedId == null) {
                 sendMessage(); // If no message is swiped, send a new message
@@ -372,6 +585,7 @@ public class ChatActivity extends BaseActivity {
         binding.imageInfo.setOnClickListener(v -> {
             receiverUser = (User) getIntent().getSerializableExtra(Constants.KEY_USER);
             Intent intent = new Intent(getApplicationContext(), RecipientActivity.class);
+            intent.putExtra(Constants.KEY_RECEIVER_IMAGE_HASH, receiverUser.imageHash);
             intent.putExtra(Constants.KEY_RECEIVER_IMAGE, receiverUser.image);
             intent.putExtra(Constants.KEY_RECEIVER_NAME, receiverUser.name);
             intent.putExtra(Constants.KEY_RECEIVER_EMAIL, receiverUser.email);
@@ -379,55 +593,90 @@ public class ChatActivity extends BaseActivity {
         });
     }
 
-    private String getReadableDateTime(Date date) {
-        return new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.getDefault()).format(date);
-    }
-
-    private void addConversion(HashMap<String, Object> conversion) {
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .add(conversion)
-                .addOnSuccessListener(documentReference -> conversionId = documentReference.getId());
+    private void updateConversion(String message) {
+        WriteBatch batch = database.batch();
+        putConversionUpdate(batch, message);
+        batch.commit();
     }
 
-    private void updateConversion(String message) {
-        DocumentReference documentReference = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS).document(conversionId);
-        documentReference.update(
-                Constants.KEY_LAST_MESSAGE, message,
-                Constants.KEY_TIMESTAMP, new Date()
-        );
+    private void putConversionUpdate(WriteBatch batch, String message) {
+        Date timestamp = new Date();
+        HashMap<String, Object> conversation = new HashMap<>();
+        conversation.put(Constants.KEY_LAST_MESSAGE, message);
+        conversation.put(Constants.KEY_TIMESTAMP, timestamp);
+        // A merge instead of an update, so a conversation the peer already deleted does not fail
+        // the batch and roll back the message tombstones it carries
+        batch.set(conversationReference, conversation, SetOptions.merge());
+        putInboxEntries(batch, message, timestamp);
     }
 
-    private void checkForConversion() {
-        if (chatMessages.size() != 0) {
-            checkForConversionRemotely(
-                    preferenceManager.getString(Constants.KEY_USER_ID),
-                    receiverUser.id
-            );
-            checkForConversionRemotely(
-                    receiverUser.id,
-                    preferenceManager.getString(Constants.KEY_USER_ID)
-            );
+    private void markConversationRead() {
+        if (conversionId == null) {
+            return;
         }
+        hasUnreadSinceRead = false;
+        WriteBatch batch = database.batch();
+        batch.update(conversationReference, FieldPath.of(Constants.KEY_UNREAD_COUNTS, currentUserId), 0);
+        Inbox.putRead(batch, database, currentUserId, conversationReference.getId());
+        batch.commit();
     }
 
-    private void checkForConversionRemotely(String senderId, String receiverId) {
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .whereEqualTo(Constants.KEY_SENDER_ID, senderId)
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, receiverId)
-                .get()
-                .addOnCompleteListener(conversionOnCompleteListener);
+    /**
+     * Fans the conversation's new state out to both participants' inboxes, in the same batch as
+     * the conversation write.
+     */
+    private void putInboxEntries(WriteBatch batch, String lastMessage, Date timestamp) {
+        String conversationId = conversationReference.getId();
+        Inbox.putEntry(batch, database, currentUserId, conversationId,
+                receiverUser.id, receiverUser.name, receiverUser.email, receiverUser.imageHash,
+                lastMessage, timestamp);
+        Inbox.putEntry(batch, database, receiverUser.id, conversationId,
+                currentUserId, preferenceManager.getString(Constants.KEY_NAME),
+                preferenceManager.getString(Constants.KEY_EMAIL), preferenceManager.getString(Constants.KEY_IMAGE_HASH),
+                lastMessage, timestamp);
     }
 
-    private final OnCompleteListener<QuerySnapshot> conversionOnCompleteListener = task -> {
-        if (task.isSuccessful() && task.getResult() != null && task.getResult().getDocuments().size() > 0) {
-            DocumentSnapshot documentSnapshot = task.getResult().getDocuments().get(0);
-            conversionId = documentSnapshot.getId();
-        }
-    };
+    private void checkForConversion() {
+        conversationReference.get().addOnSuccessListener(documentSnapshot -> {
+            if (documentSnapshot.exists()) {
+                conversionId = documentSnapshot.getId();
+                Object unreadCount = documentSnapshot.get(FieldPath.of(Constants.KEY_UNREAD_COUNTS, currentUserId));
+                if ((unreadCount instanceof Number && ((Number) unreadCount).longValue() > 0) || hasUnreadSinceRead) {
+                    markConversationRead();
+                }
+            }
+        });
+    }
 
     @Override
     protected void onResume() {
         super.onResume();
         listenAvailabilityOfReceiver();
+        // Messages that arrived while the chat was in the background are now on screen
+        if (hasUnreadSinceRead) {
+            markConversationRead();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (hasUnreadSinceRead) {
+            markConversationRead();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        syncRetryHandler.removeCallbacksAndMessages(null);
+        Outbox.getInstance().removeListener(outboxListener);
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Presence is only needed while the chat is visible
+        listenerRegistry.remove(availabilityListenerKey());
     }
 }
\ No newline at end of file
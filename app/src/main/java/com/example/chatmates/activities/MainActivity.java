@@ -2,12 +2,11 @@ package com.example.chatmates.activities;
 
 import android.app.AlertDialog;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
-import android.util.Base64;
 import android.view.View;
 import android.widget.Toast;
 
@@ -18,33 +17,62 @@ import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 import com.example.chatmates.R;
 import com.example.chatmates.adapters.RecentConversationAdapter;
 import com.example.chatmates.databinding.ActivityMainBinding;
+import com.example.chatmates.firebase.AvatarStore;
+import com.example.chatmates.firebase.ChatMigration;
+import com.example.chatmates.firebase.ConversationPurge;
+import com.example.chatmates.firebase.Inbox;
+import com.example.chatmates.firebase.ListenerRegistry;
+import com.example.chatmates.firebase.ProfilePropagation;
+import com.example.chatmates.firebase.UserSummaries;
 import com.example.chatmates.listeners.ConversionListener;
 import com.example.chatmates.models.ChatMessage;
 import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.AppExecutors;
+import com.example.chatmates.utilities.AvatarLoader;
+import com.example.chatmates.utilities.ChatMatesDatabase;
 import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.ConversationStore;
+import com.example.chatmates.utilities.InboxCache;
+import com.example.chatmates.utilities.MessageCache;
+import com.example.chatmates.utilities.NameNormalizer;
 import com.example.chatmates.utilities.PreferenceManager;
+import com.example.chatmates.utilities.SearchIndex;
 import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
 import com.google.firebase.messaging.FirebaseMessaging;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
 
 public class MainActivity extends BaseActivity implements ConversionListener {
 
+    private static final String INBOX_LISTENER = "inbox";
+    private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
     private ActivityMainBinding binding;
     private PreferenceManager preferenceManager;
-    private List<ChatMessage> conversations;
-    private List<ChatMessage> filteredConversations; // New list for filtered conversations
+    private final ConversationStore conversationStore = new ConversationStore();
+    // Ranks matches by name, then email, with the most recent conversation first among equals
+    private final SearchIndex<ChatMessage> conversationIndex = new SearchIndex<>((first, second) ->
+            second.dateObject.compareTo(first.dateObject));
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable pendingSearch = this::showConversations;
     private RecentConversationAdapter conversationAdapter;
     private FirebaseFirestore database;
+    // Written only on the snapshot parser thread and the background executor
+    private InboxCache inboxCache;
     private SwipeRefreshLayout swipeRefreshLayout;
+    private String currentUserId;
+    private final ListenerRegistry listenerRegistry = new ListenerRegistry(this);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,11 +80,15 @@ public class MainActivity extends BaseActivity implements ConversionListener {
         binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
         preferenceManager = new PreferenceManager(getApplicationContext());
+        currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
         init();
         loadUserDetails();
         getToken();
         setListeners();
-        listenConversations();
+        loadConversations();
+        migrateChats();
+        migrateAvatar();
+        publishUserSummary();
         setupSearchUser(); // New method for filtering conversations
 
         binding.main.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
@@ -70,24 +102,23 @@ public class MainActivity extends BaseActivity implements ConversionListener {
 
     private void reloadConversations() {
         // Clear the current conversations to avoid duplicates
-        conversations.clear();
-
-        // Reload the conversations (fetch new data, etc.)
-        listenConversations();  // This will repopulate the conversations list
+        conversationStore.clear();
+        conversationIndex.clear();
+        UserSummaries.getInstance().clear();
 
-        // Notify the adapter of the dataset change
-        conversationAdapter.notifyDataSetChanged();
+        // Reload from disk; the inbox listener is replaced to resume from the cached version
+        loadConversations();
 
         // Stop the refresh animation when the data is reloaded
         binding.main.setRefreshing(false);
     }
 
     private void init() {
-        conversations = new ArrayList<>();
-        filteredConversations = new ArrayList<>();
-        conversationAdapter = new RecentConversationAdapter(filteredConversations, this);
+        conversationAdapter = new RecentConversationAdapter(conversationStore, this);
+        conversationStore.setUpdateCallback(conversationAdapter.getStoreUpdateCallback());
         binding.conversationRecyclerView.setAdapter(conversationAdapter);
         database = FirebaseFirestore.getInstance();
+        inboxCache = new InboxCache(ChatMatesDatabase.getInstance(getApplicationContext()), currentUserId);
     }
 
     private void setListeners() {
@@ -115,23 +146,120 @@ public class MainActivity extends BaseActivity implements ConversionListener {
     }
 
     private void deleteMessage(ChatMessage chatMessage) {
-        // Remove conversation from Firestore
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .document(chatMessage.conversationId)
-                .delete()
+        // Remove conversation from Firestore and leave tombstones so both inboxes drop it
+        WriteBatch batch = database.batch();
+        batch.delete(database.collection(Constants.KEY_COLLECTION_CONVERSATIONS).document(chatMessage.conversationId));
+        Inbox.putTombstone(batch, database, currentUserId, chatMessage.conversationId);
+        Inbox.putTombstone(batch, database, chatMessage.conversionId, chatMessage.conversationId);
+        batch.commit()
                 .addOnSuccessListener(unused -> {
-                    conversations.remove(chatMessage);
-                    filterConversations(binding.searchUser.getText().toString());
+                    // The messages subcollection outlives its document, so it is purged separately
+                    ConversationPurge.getInstance().purge(chatMessage.conversationId, currentUserId);
+                    conversationStore.remove(chatMessage.conversationId);
+                    conversationIndex.remove(chatMessage.conversationId);
+                    showConversations();
                     showToast("Conversation deleted successfully");
                 })
                 .addOnFailureListener(e -> showToast("Failed to delete conversation"));
     }
 
+    private void migrateChats() {
+        if (preferenceManager.getBoolean(Constants.KEY_IS_CHATS_MIGRATED)) {
+            backfillInbox();
+            return;
+        }
+        new ChatMigration(database, preferenceManager.getString(Constants.KEY_USER_ID))
+                .migrate(isSuccessful -> {
+                    if (isSuccessful) {
+                        preferenceManager.putBoolean(Constants.KEY_IS_CHATS_MIGRATED, true);
+                        backfillInbox();
+                    }
+                });
+    }
+
+    private void backfillInbox() {
+        // Conversations from before the inbox only exist in the conversations collection; the
+        // backfilled entries reach the list through the inbox listener
+        if (preferenceManager.getBoolean(Constants.KEY_IS_INBOX_BACKFILLED)) {
+            return;
+        }
+        Inbox.backfill(database, currentUserId, isSuccessful -> {
+            if (isSuccessful) {
+                preferenceManager.putBoolean(Constants.KEY_IS_INBOX_BACKFILLED, true);
+            }
+        });
+    }
+
+    private void migrateAvatar() {
+        // Accounts created before the avatar store still keep their image inline in users/{id}
+        String encodedImage = preferenceManager.getString(Constants.KEY_IMAGE);
+        if (preferenceManager.getString(Constants.KEY_IMAGE_HASH) != null || encodedImage == null) {
+            migrateConversationAvatars();
+            return;
+        }
+        String imageHash = AvatarStore.hashOf(encodedImage);
+        HashMap<String, Object> updates = new HashMap<>();
+        updates.put(Constants.KEY_IMAGE_HASH, imageHash);
+        updates.put(Constants.KEY_IMAGE, FieldValue.delete());
+        // The avatar is written in the same batch, so the user never points at a missing hash
+        WriteBatch batch = database.batch();
+        AvatarStore.getInstance().put(batch, imageHash, encodedImage);
+        batch.update(database.collection(Constants.KEY_COLLECTION_USERS).document(currentUserId), updates);
+        batch.set(UserSummaries.getInstance().document(currentUserId), UserSummaries.summaryOf(
+                preferenceManager.getString(Constants.KEY_NAME), preferenceManager.getString(Constants.KEY_EMAIL), imageHash),
+                SetOptions.merge());
+        batch.commit()
+                .addOnSuccessListener(unused -> {
+                    preferenceManager.putString(Constants.KEY_IMAGE_HASH, imageHash);
+                    migrateConversationAvatars();
+                });
+    }
+
+    private void migrateConversationAvatars() {
+        // Conversations from before the avatar store carry each participant's image inline; every
+        // participant replaces their own copy with the hash
+        String imageHash = preferenceManager.getString(Constants.KEY_IMAGE_HASH);
+        if (imageHash == null || preferenceManager.getBoolean(Constants.KEY_IS_CONVERSATION_AVATARS_MIGRATED)) {
+            return;
+        }
+        new ProfilePropagation(database, currentUserId, preferenceManager.getString(Constants.KEY_NAME),
+                preferenceManager.getString(Constants.KEY_EMAIL), imageHash)
+                .start(new ProfilePropagation.Listener() {
+                    @Override
+                    public void onProgress(int updatedCount) {
+                        // The migration runs silently; only its completion is remembered
+                    }
+
+                    @Override
+                    public void onFinished(int updatedCount, Exception error) {
+                        if (error == null) {
+                            preferenceManager.putBoolean(Constants.KEY_IS_CONVERSATION_AVATARS_MIGRATED, true);
+                        }
+                    }
+                });
+    }
+
+    private void publishUserSummary() {
+        // Accounts created before the directory moved to userSummaries have no summary and no
+        // normalized name, so they would never show up in it
+        if (preferenceManager.getBoolean(Constants.KEY_IS_USER_SUMMARY_PUBLISHED)) {
+            return;
+        }
+        String name = preferenceManager.getString(Constants.KEY_NAME);
+        WriteBatch batch = database.batch();
+        batch.update(database.collection(Constants.KEY_COLLECTION_USERS).document(currentUserId),
+                Constants.KEY_NAME_LOWERCASE, NameNormalizer.normalize(name));
+        batch.set(UserSummaries.getInstance().document(currentUserId), UserSummaries.summaryOf(
+                name, preferenceManager.getString(Constants.KEY_EMAIL), preferenceManager.getString(Constants.KEY_IMAGE_HASH)),
+                SetOptions.merge());
+        batch.commit()
+                .addOnSuccessListener(unused -> preferenceManager.putBoolean(Constants.KEY_IS_USER_SUMMARY_PUBLISHED, true));
+    }
+
     private void loadUserDetails() {
         binding.textName.setText(preferenceManager.getString(Constants.KEY_NAME));
-        byte[] bytes = Base64.decode(preferenceManager.getString(Constants.KEY_IMAGE), Base64.DEFAULT);
-        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        binding.imageProfile.setImageBitmap(bitmap);
+        AvatarLoader.load(binding.imageProfile,
+                preferenceManager.getString(Constants.KEY_IMAGE_HASH), preferenceManager.getString(Constants.KEY_IMAGE));
     }
 
     private void showToast(String message) {
@@ -147,7 +275,9 @@ public class MainActivity extends BaseActivity implements ConversionListener {
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-                filterConversations(s.toString());
+                // Waits for a pause in typing before querying the index
+                searchHandler.removeCallbacks(pendingSearch);
+                searchHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MILLIS);
             }
 
             @Override
@@ -157,86 +287,164 @@ public class MainActivity extends BaseActivity implements ConversionListener {
         });
     }
 
-    private void listenConversations() {
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .whereEqualTo(Constants.KEY_SENDER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .addSnapshotListener(eventListener);
-        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
-                .whereEqualTo(Constants.KEY_RECEIVER_ID, preferenceManager.getString(Constants.KEY_USER_ID))
-                .addSnapshotListener(eventListener);
+    /**
+     * Shows the conversations cached on disk, then listens for inbox entries newer than the
+     * cached version. A launch therefore reads only what changed since the last session.
+     */
+    private void loadConversations() {
+        AppExecutors.background().execute(() -> {
+            List<ChatMessage> cachedConversations = inboxCache.loadAll();
+            long version = inboxCache.getVersion();
+            AppExecutors.runOnMainThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                for (ChatMessage conversation : cachedConversations) {
+                    ChatMessage withSummary = withSummary(conversation);
+                    conversationStore.upsert(withSummary);
+                    indexConversation(withSummary);
+                }
+                if (!cachedConversations.isEmpty()) {
+                    binding.conversationRecyclerView.setVisibility(View.VISIBLE);
+                    binding.progressBar.setVisibility(View.GONE);
+                }
+                showConversations();
+                fetchUserSummaries(cachedConversations);
+                // The old listener, if any, keeps delivering until this one resumes from the same version
+                listenerRegistry.replace(INBOX_LISTENER, () -> Inbox.changedSince(database, currentUserId, version)
+                        .addSnapshotListener(AppExecutors.snapshotParser(), inboxListener));
+            });
+        });
     }
 
-    private void filterConversations(String query) {
-        filteredConversations.clear();
-        if (query.isEmpty()) {
-            filteredConversations.addAll(conversations);
+    /**
+     * Shows every conversation, most recent first, or the index's ranked matches for the text
+     * in the search box.
+     */
+    private void showConversations() {
+        String query = binding.searchUser.getText().toString();
+        if (NameNormalizer.normalize(query).isEmpty()) {
+            conversationAdapter.setFilterResults(null);
         } else {
-            for (ChatMessage conversation : conversations) {
-                if (conversation.conversionName != null &&
-                        conversation.conversionName.toLowerCase().contains(query.toLowerCase())) {
-                    filteredConversations.add(conversation);
-                }
+            conversationIndex.searchAsync(query, conversationAdapter::setFilterResults);
+        }
+    }
+
+    // Runs on the snapshot parser thread: persists the changed entries with the new version,
+    // then hands a ready-to-bind batch to the main thread
+    private final EventListener<QuerySnapshot> inboxListener = (value, error) -> {
+        if (error != null || value == null) {
+            return;
+        }
+        List<ChatMessage> changedConversations = new ArrayList<>();
+        List<String> deletedIds = new ArrayList<>();
+        long version = inboxCache.getVersion();
+        for (DocumentChange documentChange : value.getDocumentChanges()) {
+            DocumentSnapshot entry = documentChange.getDocument();
+            version = Math.max(version, Inbox.versionOf(entry));
+            if (documentChange.getType() == DocumentChange.Type.REMOVED || Inbox.isTombstone(entry)) {
+                deletedIds.add(entry.getId());
+                // The purge of its messages is invisible to the chat's delta sync, which only
+                // sees changed messages, so the cached copy is dropped here
+                new MessageCache(ChatMatesDatabase.getInstance(getApplicationContext()), entry.getId()).clear();
+                continue;
+            }
+            ChatMessage conversation = Inbox.toConversation(entry);
+            if (conversation.dateObject != null) {
+                changedConversations.add(conversation);
+            }
+        }
+        inboxCache.apply(changedConversations, deletedIds, version);
+        List<ChatMessage> displayedConversations = new ArrayList<>();
+        for (ChatMessage conversation : changedConversations) {
+            displayedConversations.add(withSummary(conversation));
+        }
+        AppExecutors.runOnMainThread(() -> {
+            if (isDestroyed()) {
+                return;
             }
+            applyConversationChanges(displayedConversations, deletedIds);
+        });
+    };
+
+    /**
+     * Returns the conversation with the peer's name, email and avatar taken from their user
+     * summary, which stays current when they edit their profile. Without a cached summary the
+     * copies stored on the conversation document are kept.
+     */
+    private ChatMessage withSummary(ChatMessage conversation) {
+        User summary = UserSummaries.getInstance().getCached(conversation.conversionId);
+        if (summary == null
+                || (Objects.equals(summary.name, conversation.conversionName)
+                && Objects.equals(summary.email, conversation.conversionEmail)
+                && Objects.equals(summary.imageHash, conversation.conversionImageHash))) {
+            return conversation;
         }
-        conversationAdapter.notifyDataSetChanged();
+        ChatMessage updated = new ChatMessage();
+        updated.senderId = conversation.senderId;
+        updated.receiverId = conversation.receiverId;
+        updated.conversationId = conversation.conversationId;
+        updated.conversionId = conversation.conversionId;
+        updated.message = conversation.message;
+        updated.dateObject = conversation.dateObject;
+        updated.unreadCount = conversation.unreadCount;
+        updated.conversionName = summary.name;
+        updated.conversionEmail = summary.email;
+        updated.conversionImageHash = summary.imageHash;
+        // The inline image only serves peers whose avatar never moved to the avatar store
+        updated.conversionImage = summary.imageHash != null ? null : conversation.conversionImage;
+        return updated;
     }
 
-    private final EventListener<QuerySnapshot> eventListener = (value, error) -> {
-        if (error != null) {
+    private void applyUserSummaries() {
+        if (isDestroyed()) {
             return;
         }
-        if (value != null) {
-            for (DocumentChange documentChange : value.getDocumentChanges()) {
-                if (documentChange.getType() == DocumentChange.Type.ADDED) {
-                    String documentId = documentChange.getDocument().getId();
-                    String senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                    String receiverId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
-                    ChatMessage chatMessage = new ChatMessage();
-                    chatMessage.senderId = senderId;
-                    chatMessage.receiverId = receiverId;
-                    chatMessage.conversationId = documentId;
-                    if (preferenceManager.getString(Constants.KEY_USER_ID).equals(senderId)) {
-                        chatMessage.conversionImage = documentChange.getDocument().getString(Constants.KEY_RECEIVER_IMAGE);
-                        chatMessage.conversionName = documentChange.getDocument().getString(Constants.KEY_RECEIVER_NAME);
-                        chatMessage.conversionId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
-                        chatMessage.conversionEmail = documentChange.getDocument().getString(Constants.KEY_RECEIVER_EMAIL);
-                    } else {
-                        chatMessage.conversionImage = documentChange.getDocument().getString(Constants.KEY_SENDER_IMAGE);
-                        chatMessage.conversionName = documentChange.getDocument().getString(Constants.KEY_SENDER_NAME);
-                        chatMessage.conversionId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                        chatMessage.conversionEmail = documentChange.getDocument().getString(Constants.KEY_SENDER_EMAIL);
-                    }
-                    chatMessage.message = documentChange.getDocument().getString(Constants.KEY_LAST_MESSAGE);
-                    chatMessage.dateObject = documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP);
-                    conversations.add(chatMessage);
-                } else if (documentChange.getType() == DocumentChange.Type.MODIFIED) {
-                    for (int i = 0; i < conversations.size(); i++) {
-                        String senderId = documentChange.getDocument().getString(Constants.KEY_SENDER_ID);
-                        String receiverId = documentChange.getDocument().getString(Constants.KEY_RECEIVER_ID);
-                        if (conversations.get(i).senderId.equals(senderId) && conversations.get(i).receiverId.equals(receiverId)) {
-                            conversations.get(i).message = documentChange.getDocument().getString(Constants.KEY_LAST_MESSAGE);
-                            conversations.get(i).dateObject = documentChange.getDocument().getDate(Constants.KEY_TIMESTAMP);
-                            break;
-                        }
-                    }
-                } else if (documentChange.getType() == DocumentChange.Type.REMOVED) {
-                    String documentId = documentChange.getDocument().getId();
-                    for (int i = 0; i < conversations.size(); i++) {
-                        if (conversations.get(i).conversationId.equals(documentId)) {
-                            conversations.remove(i);
-                            break;
-                        }
-                    }
-                    filterConversations(binding.searchUser.getText().toString());
-                }
+        for (int i = 0; i < conversationStore.size(); i++) {
+            ChatMessage updated = withSummary(conversationStore.get(i));
+            if (updated != conversationStore.get(i)) {
+                // Same timestamp, so this is an in-place change and never a move
+                conversationStore.upsert(updated);
+                indexConversation(updated);
             }
-            Collections.sort(conversations, (obj1, obj2) -> obj2.dateObject.compareTo(obj1.dateObject));
-            filterConversations(binding.searchUser.getText().toString()); // Apply filter on update
+        }
+        showConversations();
+    }
+
+    private void applyConversationChanges(List<ChatMessage> changedConversations, List<String> deletedIds) {
+        boolean isTopChanged = false;
+        for (String conversationId : deletedIds) {
+            conversationStore.remove(conversationId);
+            conversationIndex.remove(conversationId);
+        }
+        for (ChatMessage changedConversation : changedConversations) {
+            // A new message moves its conversation to the top as a single row move
+            if (conversationStore.upsert(changedConversation) == 0) {
+                isTopChanged = true;
+            }
+            indexConversation(changedConversation);
+        }
+        showConversations(); // Apply filter on update
+        fetchUserSummaries(changedConversations);
+        if (isTopChanged) {
             binding.conversationRecyclerView.smoothScrollToPosition(0);
-            binding.conversationRecyclerView.setVisibility(View.VISIBLE);
-            binding.progressBar.setVisibility(View.GONE);
         }
-    };
+        binding.conversationRecyclerView.setVisibility(View.VISIBLE);
+        binding.progressBar.setVisibility(View.GONE);
+    }
+
+    private void fetchUserSummaries(List<ChatMessage> conversations) {
+        List<String> peerIds = new ArrayList<>();
+        for (ChatMessage conversation : conversations) {
+            peerIds.add(conversation.conversionId);
+        }
+        UserSummaries.getInstance().fetchMissing(peerIds, this::applyUserSummaries);
+    }
+
+    private void indexConversation(ChatMessage conversation) {
+        conversationIndex.put(conversation.conversationId, conversation,
+                conversation.conversionName, conversation.conversionEmail);
+    }
 
     private void getToken() {
         FirebaseMessaging.getInstance().getToken()
@@ -272,6 +480,12 @@ public class MainActivity extends BaseActivity implements ConversionListener {
                 });
     }
 
+    @Override
+    protected void onDestroy() {
+        searchHandler.removeCallbacks(pendingSearch);
+        super.onDestroy();
+    }
+
     @Override
     public void onConversionClicked(User user) {
         Intent intent = new Intent(getApplicationContext(), ChatActivity.class);
@@ -1,13 +1,15 @@
 package com.example.chatmates.activities;
 
+import android.annotation.SuppressLint;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.text.InputType;
-import android.util.Base64;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.EditText;
@@ -16,16 +18,24 @@ import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
 
 import com.example.chatmates.R;
 import com.example.chatmates.databinding.ActivityProfileBinding;
+import com.example.chatmates.firebase.AvatarStore;
+import com.example.chatmates.firebase.ProfilePropagation;
+import com.example.chatmates.firebase.UserSummaries;
+import com.example.chatmates.utilities.AvatarLoader;
 import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.ImageIngest;
+import com.example.chatmates.utilities.NameNormalizer;
 import com.example.chatmates.utilities.PreferenceManager;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.util.HashMap;
 
 public class ProfileActivity extends AppCompatActivity {
@@ -106,16 +116,32 @@ public class ProfileActivity extends AppCompatActivity {
 
         HashMap<String, Object> updates = new HashMap<>();
         updates.put(Constants.KEY_NAME, binding.inputName.getText().toString());
+        updates.put(Constants.KEY_NAME_LOWERCASE, NameNormalizer.normalize(binding.inputName.getText().toString()));
         updates.put(Constants.KEY_EMAIL, binding.inputEmail.getText().toString());
         updates.put(Constants.KEY_PASSWORD, binding.inputPassword.getText().toString());
+        String imageHash = preferenceManager.getString(Constants.KEY_IMAGE_HASH);
         if (encodedImage != null) {
-            updates.put(Constants.KEY_IMAGE, encodedImage);
+            imageHash = AvatarStore.hashOf(encodedImage);
+            updates.put(Constants.KEY_IMAGE_HASH, imageHash);
+            updates.put(Constants.KEY_IMAGE, FieldValue.delete());
         }
 
-        database.collection(Constants.KEY_COLLECTION_USERS)
-                .document(userId)
-                .update(updates)
+        // The summary changes together with the user document so list screens never disagree
+        WriteBatch batch = database.batch();
+        if (encodedImage != null) {
+            AvatarStore.getInstance().put(batch, imageHash, encodedImage);
+        }
+        batch.update(database.collection(Constants.KEY_COLLECTION_USERS).document(userId), updates);
+        batch.set(UserSummaries.getInstance().document(userId), UserSummaries.summaryOf(
+                binding.inputName.getText().toString(), binding.inputEmail.getText().toString(), imageHash),
+                SetOptions.merge());
+        ProfilePropagation propagation = new ProfilePropagation(database, userId,
+                binding.inputName.getText().toString(), binding.inputEmail.getText().toString(), imageHash);
+        batch.commit()
                 .addOnSuccessListener(unused -> {
+                    // Copying the profile into every chat is paced and can take a while, so it
+                    // finishes in the background instead of holding up the logout
+                    propagation.start(new PropagationReport(getApplicationContext()));
                     loading(false);
                     showToast("Profile updated successfully!");
                     logOut();
@@ -131,12 +157,8 @@ public class ProfileActivity extends AppCompatActivity {
         String userEmail = preferenceManager.getString(Constants.KEY_EMAIL);
         String userPassword = preferenceManager.getString(Constants.KEY_PASSWORD);
 
-        String encodedImage = preferenceManager.getString(Constants.KEY_IMAGE);
-        if (encodedImage != null) {
-            byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
-            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-            binding.imageProfile.setImageBitmap(bitmap);
-        }
+        AvatarLoader.load(binding.imageProfile,
+                preferenceManager.getString(Constants.KEY_IMAGE_HASH), preferenceManager.getString(Constants.KEY_IMAGE));
 
         binding.inputName.setText(userName);
         binding.inputEmail.setText(userEmail);
@@ -151,14 +173,61 @@ public class ProfileActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
-    private String encodeImage(Bitmap bitmap) {
-        int previewWidth = 150;
-        int previewHeight = bitmap.getHeight() * previewWidth / bitmap.getWidth();
-        Bitmap previewBitmap = Bitmap.createScaledBitmap(bitmap, previewWidth, previewHeight, false);
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        previewBitmap.compress(Bitmap.CompressFormat.JPEG, 50, byteArrayOutputStream);
-        byte[] bytes = byteArrayOutputStream.toByteArray();
-        return Base64.encodeToString(bytes, Base64.DEFAULT);
+    /**
+     * Shows a propagation that outlived this screen as an ongoing notification, through the
+     * application context. The notification goes away once every chat shows the new profile.
+     */
+    private static class PropagationReport implements ProfilePropagation.Listener {
+
+        private static final String CHANNEL_ID = "profileUpdates";
+        private static final int NOTIFICATION_ID = 1;
+
+        private final Context context;
+        private final NotificationManagerCompat notificationManager;
+
+        PropagationReport(Context context) {
+            this.context = context;
+            notificationManager = NotificationManagerCompat.from(context);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                        context.getString(R.string.profile_updates), NotificationManager.IMPORTANCE_LOW));
+            }
+        }
+
+        @Override
+        public void onProgress(int updatedCount) {
+            post(new NotificationCompat.Builder(context, CHANNEL_ID)
+                    .setSmallIcon(R.drawable.round_email_24)
+                    .setContentTitle(context.getString(R.string.updating_your_chats))
+                    .setContentText(context.getResources().getQuantityString(
+                            R.plurals.chats_updated, updatedCount, updatedCount))
+                    .setProgress(0, 0, true)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true));
+        }
+
+        @Override
+        public void onFinished(int updatedCount, Exception error) {
+            if (error == null) {
+                notificationManager.cancel(NOTIFICATION_ID);
+                return;
+            }
+            // The profile itself is saved; only some chats still show the old details
+            String message = "Only " + updatedCount + " chats show your new profile: " + error.getMessage();
+            post(new NotificationCompat.Builder(context, CHANNEL_ID)
+                    .setSmallIcon(R.drawable.round_email_24)
+                    .setContentTitle(context.getString(R.string.updating_your_chats))
+                    .setContentText(message));
+            Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+        }
+
+        @SuppressLint("MissingPermission")
+        private void post(NotificationCompat.Builder builder) {
+            // Without the notification permission only the error toast is shown
+            if (notificationManager.areNotificationsEnabled()) {
+                notificationManager.notify(NOTIFICATION_ID, builder.build());
+            }
+        }
     }
 
     private final ActivityResultLauncher<Intent> pickImage = registerForActivityResult(
@@ -167,15 +236,20 @@ public class ProfileActivity extends AppCompatActivity {
                 if (result.getResultCode() == RESULT_OK) {
                     if (result.getData() != null) {
                         Uri imageUri = result.getData().getData();
-                        try {
-                            InputStream inputStream = getContentResolver().openInputStream(imageUri);
-                            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                            binding.imageProfile.setImageBitmap(bitmap);
-                            binding.textAddImage.setVisibility(View.GONE);
-                            encodedImage = encodeImage(bitmap);
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
+                        ImageIngest.ingest(this, imageUri, new ImageIngest.Callback() {
+                            @Override
+                            public void onIngested(ImageIngest.Result ingested) {
+                                AvatarLoader.cancel(binding.imageProfile);
+                                binding.imageProfile.setImageBitmap(ingested.preview);
+                                binding.textAddImage.setVisibility(View.GONE);
+                                encodedImage = ingested.encodedImage;
+                            }
+
+                            @Override
+                            public void onFailed(Exception exception) {
+                                showToast("Unable to load image");
+                            }
+                        });
                     }
                 }
             }
@@ -1,9 +1,6 @@
 package com.example.chatmates.activities;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.util.Base64;
 
 import androidx.activity.EdgeToEdge;
 import androidx.appcompat.app.AppCompatActivity;
@@ -13,6 +10,7 @@ import androidx.core.view.WindowInsetsCompat;
 
 import com.example.chatmates.R;
 import com.example.chatmates.databinding.ActivityRecipientBinding;
+import com.example.chatmates.utilities.AvatarLoader;
 import com.example.chatmates.utilities.Constants;
 
 public class RecipientActivity extends AppCompatActivity {
@@ -35,11 +33,10 @@ public class RecipientActivity extends AppCompatActivity {
     private void loadRecipientDetail() {
         String recipientName = getIntent().getStringExtra(Constants.KEY_RECEIVER_NAME);
         String recipientEmail = getIntent().getStringExtra(Constants.KEY_RECEIVER_EMAIL);
+        String recipientImageHash = getIntent().getStringExtra(Constants.KEY_RECEIVER_IMAGE_HASH);
         String recipientImage = getIntent().getStringExtra(Constants.KEY_RECEIVER_IMAGE);
 
-        byte[] bytes = Base64.decode(recipientImage, Base64.DEFAULT);
-        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        binding.imageProfile.setImageBitmap(bitmap);
+        AvatarLoader.load(binding.imageProfile, recipientImageHash, recipientImage);
 
         binding.inputName.setText(recipientName);
         binding.inputEmail.setText(recipientEmail);
@@ -2,14 +2,11 @@ package com.example.chatmates.activities;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.InetAddresses;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.text.InputType;
-import android.util.Base64;
 import android.util.Patterns;
 import android.view.MotionEvent;
 import android.view.View;
@@ -26,13 +23,16 @@ import androidx.core.view.WindowInsetsCompat;
 
 import com.example.chatmates.R;
 import com.example.chatmates.databinding.ActivitySignUpBinding;
+import com.example.chatmates.firebase.AvatarStore;
+import com.example.chatmates.firebase.UserSummaries;
 import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.ImageIngest;
+import com.example.chatmates.utilities.NameNormalizer;
 import com.example.chatmates.utilities.PreferenceManager;
+import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Objects;
 import java.util.regex.Pattern;
@@ -115,21 +115,30 @@ public class SignUpActivity extends AppCompatActivity {
     private void signUp() {
         loading(true);
         FirebaseFirestore database = FirebaseFirestore.getInstance();
+        String imageHash = AvatarStore.hashOf(encodedImage);
         HashMap<String, Object> user = new HashMap<>();
         user.put(Constants.KEY_NAME, binding.inputName.getText().toString());
+        user.put(Constants.KEY_NAME_LOWERCASE, NameNormalizer.normalize(binding.inputName.getText().toString()));
         user.put(Constants.KEY_EMAIL, binding.inputEmail.getText().toString());
         user.put(Constants.KEY_PASSWORD, binding.inputPassword.getText().toString());
-        user.put(Constants.KEY_IMAGE, encodedImage);
-        database.collection(Constants.KEY_COLLECTION_USERS)
-                .add(user)
-                .addOnSuccessListener(documentReference -> {
+        user.put(Constants.KEY_IMAGE_HASH, imageHash);
+        DocumentReference documentReference = database.collection(Constants.KEY_COLLECTION_USERS).document();
+        WriteBatch batch = database.batch();
+        AvatarStore.getInstance().put(batch, imageHash, encodedImage);
+        batch.set(documentReference, user);
+        batch.set(UserSummaries.getInstance().document(documentReference.getId()), UserSummaries.summaryOf(
+                binding.inputName.getText().toString(), binding.inputEmail.getText().toString(), imageHash));
+        batch.commit()
+                .addOnSuccessListener(unused -> {
                     loading(false);
                     preferenceManager.putBoolean(Constants.KEY_IS_SIGNED_IN, true);
                     preferenceManager.putString(Constants.KEY_USER_ID, documentReference.getId());
                     preferenceManager.putString(Constants.KEY_NAME, binding.inputName.getText().toString());
                     preferenceManager.putString(Constants.KEY_IMAGE, encodedImage);
+                    preferenceManager.putString(Constants.KEY_IMAGE_HASH, imageHash);
                     preferenceManager.putString(Constants.KEY_EMAIL, binding.inputEmail.getText().toString());
                     preferenceManager.putString(Constants.KEY_PASSWORD, binding.inputPassword.getText().toString());
+                    preferenceManager.putBoolean(Constants.KEY_IS_USER_SUMMARY_PUBLISHED, true);
                     Intent intent = new Intent(getApplicationContext(), MainActivity.class);
                     intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
                     startActivity(intent);
@@ -140,31 +149,25 @@ public class SignUpActivity extends AppCompatActivity {
                 });
     }
 
-    private String encodeImage(Bitmap bitmap) {
-        int previewWidth = 150;
-        int previewHeight = bitmap.getHeight() * previewWidth / bitmap.getWidth();
-        Bitmap previewBitmap = Bitmap.createScaledBitmap(bitmap, previewWidth, previewHeight, false);
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        previewBitmap.compress(Bitmap.CompressFormat.JPEG, 50, byteArrayOutputStream);
-        byte[] bytes = byteArrayOutputStream.toByteArray();
-        return Base64.encodeToString(bytes, Base64.DEFAULT);
-    }
-
     private final ActivityResultLauncher<Intent> pickImage = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
             result -> {
                 if (result.getResultCode() == RESULT_OK) {
                     if (result.getData() != null) {
                         Uri imageUri = result.getData().getData();
-                        try {
-                            InputStream inputStream = getContentResolver().openInputStream(imageUri);
-                            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                            binding.imageProfile.setImageBitmap(bitmap);
-                            binding.textAddImage.setVisibility(View.GONE);
-                            encodedImage = encodeImage(bitmap);
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
+                        ImageIngest.ingest(this, imageUri, new ImageIngest.Callback() {
+                            @Override
+                            public void onIngested(ImageIngest.Result ingested) {
+                                binding.imageProfile.setImageBitmap(ingested.preview);
+                                binding.textAddImage.setVisibility(View.GONE);
+                                encodedImage = ingested.encodedImage;
+                            }
+
+                            @Override
+                            public void onFailed(Exception exception) {
+                                showToast("Unable to load image");
+                            }
+                        });
                     }
                 }
             }
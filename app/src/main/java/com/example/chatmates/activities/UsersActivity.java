@@ -3,28 +3,46 @@ package com.example.chatmates.activities;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.View;
 
 import androidx.activity.EdgeToEdge;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chatmates.R;
 import com.example.chatmates.adapters.UsersAdapter;
 import com.example.chatmates.databinding.ActivityUsersBinding;
+import com.example.chatmates.firebase.UserDirectorySync;
+import com.example.chatmates.firebase.UserSummaries;
 import com.example.chatmates.listeners.UserListener;
 import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.AppExecutors;
+import com.example.chatmates.utilities.ChatMatesDatabase;
 import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.NameNormalizer;
 import com.example.chatmates.utilities.PreferenceManager;
+import com.example.chatmates.utilities.SearchIndex;
+import com.example.chatmates.utilities.UserDirectoryCache;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UsersActivity extends BaseActivity implements UserListener {
 
@@ -37,14 +55,47 @@ public class UsersActivity extends BaseActivity implements UserListener {
         binding = ActivityUsersBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
         preferenceManager = new PreferenceManager(getApplicationContext());
+        currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
+        usersAdapter = new UsersAdapter(new ArrayList<>(), this);
+        binding.usersRecyclerView.setAdapter(usersAdapter);
+        directoryCache = new UserDirectoryCache(ChatMatesDatabase.getInstance(getApplicationContext()));
+        directorySync = new UserDirectorySync(FirebaseFirestore.getInstance(), directoryCache);
         setListeners();
         setupSwipeToRefresh();
+        setupLoadMoreOnScroll();
         getUsers();
         setupSearchListener(); // Add this line to initialize the search functionality
     }
 
-    private List<User> allUsers = new ArrayList<>(); // Store all users fetched from Firestore
+    private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
+    private String currentUserId;
     private UsersAdapter usersAdapter;
+    private UserDirectoryCache directoryCache;
+    private UserDirectorySync directorySync;
+    // Every user seen so far, from directory pages, syncs and searches, so typed queries answer
+    // from memory
+    private final SearchIndex<User> userIndex = new SearchIndex<>((first, second) ->
+            NameNormalizer.normalize(first.name).compareTo(NameNormalizer.normalize(second.name)));
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable pendingSearch = () -> {
+        showUsers();
+        searchServer();
+    };
+    private String currentQuery = "";
+    // A new search starts a new generation, so results that arrive late for an older query are
+    // dropped instead of mixed into the list
+    private int queryGeneration;
+    // The directory in name order as far as it was paged in; a refresh starts a new generation so
+    // a page that arrives late for an older one is dropped
+    private final List<User> browsedUsers = new ArrayList<>();
+    private int browseGeneration;
+    private DocumentSnapshot lastVisibleUser;
+    private boolean isFirstPageLoaded;
+    private boolean hasMoreUsers;
+    private boolean isLoadingUsers;
+    // Whether the last sync left changes behind for the next one
+    private boolean hasMoreChanges;
 
     private void setListeners() {
         binding.imageBack.setOnClickListener(v -> onBackPressed());
@@ -52,51 +103,238 @@ public class UsersActivity extends BaseActivity implements UserListener {
 
     private void setupSwipeToRefresh() {
         binding.main.setOnRefreshListener(() -> {
-            getUsers();  // Reload the users list when pulled to refresh
+            getFirstPage();  // Reload the list from its first page
+            syncDirectory();  // Fetch only the users that changed since the last sync
+        });
+    }
+
+    private void setupLoadMoreOnScroll() {
+        binding.usersRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy <= 0 || !currentQuery.isEmpty()) {
+                    return;
+                }
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager != null && layoutManager.findLastVisibleItemPosition()
+                        >= usersAdapter.getItemCount() - 1 - Constants.USER_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
         });
     }
 
     private void getUsers() {
+        // Show the first page from disk right away, then load it from the server and catch up
         loading(true);
-        FirebaseFirestore database = FirebaseFirestore.getInstance();
-        database.collection(Constants.KEY_COLLECTION_USERS)
+        AppExecutors.background().execute(() -> {
+            List<User> cachedUsers = directoryCache.loadFirstPage(Constants.USER_PAGE_SIZE);
+            AppExecutors.runOnMainThread(() -> {
+                if (isDestroyed() || isFirstPageLoaded) {
+                    return;
+                }
+                browsedUsers.clear();
+                addBrowsedUsers(cachedUsers);
+                if (!browsedUsers.isEmpty()) {
+                    loading(false);
+                }
+                showUsers();
+            });
+        });
+        getFirstPage();
+        syncDirectory();
+    }
+
+    private void getFirstPage() {
+        browseGeneration++;
+        lastVisibleUser = null;
+        isFirstPageLoaded = false;
+        hasMoreUsers = true;
+        isLoadingUsers = false;
+        loadNextPage();
+    }
+
+    private void loadNextPage() {
+        if (isLoadingUsers || !hasMoreUsers) {
+            return;
+        }
+        isLoadingUsers = true;
+        int generation = browseGeneration;
+        Query query = FirebaseFirestore.getInstance()
+                .collection(Constants.KEY_COLLECTION_USER_SUMMARIES)
+                .orderBy(Constants.KEY_NAME_LOWERCASE);
+        if (lastVisibleUser != null) {
+            query = query.startAfter(lastVisibleUser);
+        }
+        query.limit(Constants.USER_PAGE_SIZE)
                 .get()
                 .addOnCompleteListener(task -> {
-                    loading(false);
-                    String currentUserId = preferenceManager.getString(Constants.KEY_USER_ID);
-                    if (task.isSuccessful() && task.getResult() != null) {
-                        allUsers.clear(); // Clear the list to avoid duplicates
-                        for (QueryDocumentSnapshot queryDocumentSnapshot : task.getResult()) {
-                            if (currentUserId.equals(queryDocumentSnapshot.getId())) {
-                                continue;
-                            }
-                            User user = new User();
-                            user.name = queryDocumentSnapshot.getString(Constants.KEY_NAME);
-                            user.email = queryDocumentSnapshot.getString(Constants.KEY_EMAIL);
-                            user.image = queryDocumentSnapshot.getString(Constants.KEY_IMAGE);
-                            user.token = queryDocumentSnapshot.getString(Constants.KEY_FCM_TOKEN);
-                            user.id = queryDocumentSnapshot.getId();
-                            allUsers.add(user);
-                        }
-                        if (allUsers.size() > 0) {
-                            usersAdapter = new UsersAdapter(allUsers, this);
-                            binding.usersRecyclerView.setAdapter(usersAdapter);
-                            binding.usersRecyclerView.setVisibility(View.VISIBLE);
-                        } else {
-                            showErrorMessage();
-                        }
-                    } else {
-                        showErrorMessage();
+                    if (generation != browseGeneration || isDestroyed()) {
+                        return;
                     }
-
+                    isLoadingUsers = false;
+                    loading(false);
                     // Stop the refreshing animation once data is fetched
                     binding.main.setRefreshing(false);
+                    if (!task.isSuccessful() || task.getResult() == null) {
+                        // Whatever came from disk stays on screen
+                        showUsers();
+                        return;
+                    }
+                    QuerySnapshot page = task.getResult();
+                    hasMoreUsers = page.size() == Constants.USER_PAGE_SIZE;
+                    if (!page.isEmpty()) {
+                        lastVisibleUser = page.getDocuments().get(page.size() - 1);
+                    }
+                    List<User> users = new ArrayList<>();
+                    List<Long> updatedAtMillis = new ArrayList<>();
+                    for (QueryDocumentSnapshot queryDocumentSnapshot : page) {
+                        Timestamp updatedAt = queryDocumentSnapshot.getTimestamp(Constants.KEY_UPDATED_AT);
+                        users.add(UserSummaries.toUser(queryDocumentSnapshot));
+                        updatedAtMillis.add(updatedAt != null ? updatedAt.toDate().getTime() : 0L);
+                    }
+                    if (!isFirstPageLoaded) {
+                        // The server's first page replaces the one shown from disk
+                        browsedUsers.clear();
+                        isFirstPageLoaded = true;
+                    }
+                    addBrowsedUsers(users);
+                    AppExecutors.background().execute(() -> directoryCache.putAll(users, updatedAtMillis));
+                    if (browsedUsers.isEmpty() && hasMoreUsers) {
+                        // The page held only the current user; keep going
+                        loadNextPage();
+                        return;
+                    }
+                    showUsers();
+                    if (hasMoreChanges) {
+                        // Each page the user scrolls to also moves the directory sync one page on
+                        syncDirectory();
+                    }
                 });
     }
 
-    private void showErrorMessage() {
-        binding.textErrorMessage.setText(String.format("%s", "No users available"));
+    private void syncDirectory() {
+        directorySync.sync(new UserDirectorySync.Listener() {
+            @Override
+            public void onUsersChanged(List<User> users) {
+                if (isDestroyed()) {
+                    return;
+                }
+                indexUsers(users);
+                updateBrowsedUsers(users);
+            }
+
+            @Override
+            public void onSyncFinished(boolean isSuccessful, boolean hasMore) {
+                if (isDestroyed()) {
+                    return;
+                }
+                hasMoreChanges = isSuccessful && hasMore;
+                binding.main.setRefreshing(false);
+                showUsers();
+            }
+        });
+    }
+
+    private void addBrowsedUsers(List<User> users) {
+        indexUsers(users);
+        for (User user : users) {
+            if (!currentUserId.equals(user.id)) {
+                browsedUsers.add(user);
+            }
+        }
+    }
+
+    /**
+     * Replaces the rows of users that changed in place; users not paged in yet show up when the
+     * list reaches them.
+     */
+    private void updateBrowsedUsers(List<User> users) {
+        Map<String, User> usersById = new HashMap<>();
+        for (User user : users) {
+            usersById.put(user.id, user);
+        }
+        for (int i = 0; i < browsedUsers.size(); i++) {
+            User user = usersById.get(browsedUsers.get(i).id);
+            if (user != null) {
+                browsedUsers.set(i, user);
+            }
+        }
+    }
+
+    private void indexUsers(List<User> users) {
+        for (User user : users) {
+            if (currentUserId.equals(user.id)) {
+                continue;
+            }
+            UserSummaries.getInstance().cache(user);
+            userIndex.put(user.id, user, user.name, user.email);
+        }
+    }
+
+    /**
+     * Shows the ranked matches for the current query, or the directory in name order as far as
+     * it was paged in when there is none. Diffing keeps the rows that did not change.
+     */
+    private void showUsers() {
+        if (currentQuery.isEmpty()) {
+            displayUsers(browsedUsers);
+        } else {
+            userIndex.searchAsync(currentQuery, this::displayUsers);
+        }
+    }
+
+    private void displayUsers(List<User> users) {
+        usersAdapter.updateUserList(users);
+        if (!users.isEmpty()) {
+            binding.textErrorMessage.setVisibility(View.GONE);
+            binding.usersRecyclerView.setVisibility(View.VISIBLE);
+        } else if (!isLoadingUsers) {
+            showErrorMessage(currentQuery.isEmpty() ? "No users available" : "No users found");
+        }
+    }
+
+    /**
+     * Asks the server for names starting with the query, which covers users the directory sync
+     * has not brought in yet.
+     */
+    private void searchServer() {
+        queryGeneration++;
+        if (currentQuery.isEmpty()) {
+            return;
+        }
+        int generation = queryGeneration;
+        // Every name starting with the query sorts between the query and the query followed
+        // by the highest code point, so the prefix search is a single indexed range
+        FirebaseFirestore.getInstance()
+                .collection(Constants.KEY_COLLECTION_USER_SUMMARIES)
+                .orderBy(Constants.KEY_NAME_LOWERCASE)
+                .startAt(currentQuery)
+                .endAt(currentQuery + "\uf8ff")
+                .limit(Constants.USER_PAGE_SIZE)
+                .get()
+                .addOnSuccessListener(page -> {
+                    if (generation != queryGeneration || isDestroyed()) {
+                        return;
+                    }
+                    List<User> users = new ArrayList<>();
+                    List<Long> updatedAtMillis = new ArrayList<>();
+                    for (QueryDocumentSnapshot queryDocumentSnapshot : page) {
+                        Timestamp updatedAt = queryDocumentSnapshot.getTimestamp(Constants.KEY_UPDATED_AT);
+                        // The chat screen picks up the token from its presence listener
+                        users.add(UserSummaries.toUser(queryDocumentSnapshot));
+                        updatedAtMillis.add(updatedAt != null ? updatedAt.toDate().getTime() : 0L);
+                    }
+                    indexUsers(users);
+                    showUsers();
+                    AppExecutors.background().execute(() -> directoryCache.putAll(users, updatedAtMillis));
+                });
+    }
+
+    private void showErrorMessage(String message) {
+        binding.textErrorMessage.setText(message);
         binding.textErrorMessage.setVisibility(View.VISIBLE);
+        binding.usersRecyclerView.setVisibility(View.GONE);
     }
 
     private void loading(Boolean isLoading) {
@@ -116,7 +354,7 @@ public class UsersActivity extends BaseActivity implements UserListener {
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-                filterUsers(s.toString().trim());
+                filterUsers(s.toString());
             }
 
             @Override
@@ -127,31 +365,20 @@ public class UsersActivity extends BaseActivity implements UserListener {
     }
 
     private void filterUsers(String query) {
-        if (usersAdapter == null) {
+        String normalizedQuery = NameNormalizer.normalize(query);
+        if (normalizedQuery.equals(currentQuery)) {
             return;
         }
+        currentQuery = normalizedQuery;
+        // Waits for a pause in typing, then answers from the index and refines from the server
+        searchHandler.removeCallbacks(pendingSearch);
+        searchHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MILLIS);
+    }
 
-        if (query.isEmpty()) {
-            // If search is empty, show all users
-            usersAdapter.updateUserList(allUsers);
-        } else {
-            // Filter users based on the query
-            List<User> filteredUsers = new ArrayList<>();
-            for (User user : allUsers) {
-                if (user.name.toLowerCase().contains(query.toLowerCase())) {
-                    filteredUsers.add(user);
-                }
-            }
-            if (filteredUsers.isEmpty()) {
-                binding.textErrorMessage.setText("No users found");
-                binding.textErrorMessage.setVisibility(View.VISIBLE);
-                binding.usersRecyclerView.setVisibility(View.GONE);
-            } else {
-                binding.textErrorMessage.setVisibility(View.GONE);
-                binding.usersRecyclerView.setVisibility(View.VISIBLE);
-                usersAdapter.updateUserList(filteredUsers);
-            }
-        }
+    @Override
+    protected void onDestroy() {
+        searchHandler.removeCallbacks(pendingSearch);
+        super.onDestroy();
     }
 
     @Override
@@ -1,37 +1,51 @@
 package com.example.chatmates.adapters;
 
-import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.chatmates.R;
 import com.example.chatmates.databinding.ItemContainerReceivedMessageBinding;
 import com.example.chatmates.databinding.ItemContainerSentMessageBinding;
 import com.example.chatmates.models.ChatMessage;
+import com.example.chatmates.utilities.AvatarLoader;
+import com.example.chatmates.utilities.MessageStore;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>{
 
     public interface MessageActionListener {
-        void onMessageLongClicked(ChatMessage chatMessage);
+        void onSelectionChanged(int selectedCount);
+
+        void onRetryClicked(ChatMessage chatMessage);
     }
 
-    private final List<ChatMessage> chatMessages;
-    private final Bitmap receiverProfileImage;
+    private final MessageStore messageStore;
+    private final String receiverImageHash;
+    private final String receiverImage;
     private final String senderId;
     private final MessageActionListener actionListener;
+    // Document ids of the messages picked for deletion; a long click on a sent message starts it
+    private final Set<String> selectedIds = new HashSet<>();
 
     public static final int VIEW_TYPE_SENT = 1;
     public static final int VIEW_TYPE_RECEIVED = 2;
 
-    public ChatAdapter(List<ChatMessage> chatMessages, Bitmap receiverProfileImage, String senderId, MessageActionListener actionListener) {
-        this.chatMessages = chatMessages;
-        this.receiverProfileImage = receiverProfileImage;
+    public ChatAdapter(MessageStore messageStore, String receiverImageHash, String receiverImage, String senderId, MessageActionListener actionListener) {
+        this.messageStore = messageStore;
+        this.receiverImageHash = receiverImageHash;
+        this.receiverImage = receiverImage;
         this.senderId = senderId;
         this.actionListener = actionListener;
+        setHasStableIds(true);
     }
 
     @NonNull
@@ -55,20 +69,66 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>{
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
         if (getItemViewType(position) == VIEW_TYPE_SENT) {
-            ((SentMessageViewHolder) holder).setData(chatMessages.get(position));
+            ((SentMessageViewHolder) holder).setData(messageStore.get(position));
         } else {
-            ((ReceivedMessageViewHolder) holder).setData(chatMessages.get(position), receiverProfileImage);
+            ((ReceivedMessageViewHolder) holder).setData(messageStore.get(position));
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder instanceof ReceivedMessageViewHolder) {
+            AvatarLoader.cancel(((ReceivedMessageViewHolder) holder).binding.imageProfile);
+        }
+    }
+
+    public boolean isSelecting() {
+        return !selectedIds.isEmpty();
+    }
+
+    public Set<String> getSelectedIds() {
+        return new HashSet<>(selectedIds);
+    }
+
+    public void clearSelection() {
+        List<String> previouslySelected = new ArrayList<>(selectedIds);
+        selectedIds.clear();
+        for (String documentId : previouslySelected) {
+            int position = messageStore.positionOf(documentId);
+            if (position >= 0) {
+                notifyItemChanged(position);
+            }
+        }
+        actionListener.onSelectionChanged(0);
+    }
+
+    private void toggleSelection(int position) {
+        ChatMessage chatMessage = messageStore.get(position);
+        // Only messages the server has can be deleted; queued ones are still being written
+        if (!selectedIds.remove(chatMessage.sentMessageDocumentId)) {
+            if (chatMessage.deliveryState != ChatMessage.STATE_SENT) {
+                return;
+            }
+            selectedIds.add(chatMessage.sentMessageDocumentId);
+        }
+        notifyItemChanged(position);
+        actionListener.onSelectionChanged(selectedIds.size());
+    }
+
     @Override
     public int getItemCount() {
-        return chatMessages.size();
+        return messageStore.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return messageStore.getStableId(position);
     }
 
     @Override
     public int getItemViewType(int position) {
-        if (chatMessages.get(position).senderId.equals(senderId)) {
+        if (messageStore.get(position).senderId.equals(senderId)) {
             return VIEW_TYPE_SENT;
         } else {
             return VIEW_TYPE_RECEIVED;
@@ -83,18 +143,47 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>{
             super(itemContainerSentMessageBinding.getRoot());
             binding = itemContainerSentMessageBinding;
             binding.getRoot().setOnLongClickListener(v -> {
-                actionListener.onMessageLongClicked(chatMessages.get(getAdapterPosition()));
+                int position = getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return false;
+                }
+                toggleSelection(position);
                 return true;
             });
+            binding.getRoot().setOnClickListener(v -> {
+                int position = getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                if (isSelecting()) {
+                    toggleSelection(position);
+                } else if (messageStore.get(position).deliveryState == ChatMessage.STATE_FAILED) {
+                    actionListener.onRetryClicked(messageStore.get(position));
+                }
+            });
         }
 
         void setData(ChatMessage chatMessage) {
             binding.textMessage.setText(chatMessage.message);
-            binding.textDateTime.setText(chatMessage.dateTime);
+            binding.getRoot().setBackgroundColor(selectedIds.contains(chatMessage.sentMessageDocumentId)
+                    ? ContextCompat.getColor(binding.getRoot().getContext(), R.color.selected_message_background)
+                    : Color.TRANSPARENT);
+            // A message the server has not confirmed is drawn faded, with its state under it
+            binding.textMessage.setAlpha(chatMessage.deliveryState == ChatMessage.STATE_SENT ? 1.0f : 0.6f);
+            if (chatMessage.deliveryState == ChatMessage.STATE_PENDING) {
+                binding.textDateTime.setText(R.string.sending);
+                binding.textDateTime.setTextColor(ContextCompat.getColor(binding.getRoot().getContext(), R.color.secondary_text));
+            } else if (chatMessage.deliveryState == ChatMessage.STATE_FAILED) {
+                binding.textDateTime.setText(R.string.not_sent_tap_to_retry);
+                binding.textDateTime.setTextColor(ContextCompat.getColor(binding.getRoot().getContext(), R.color.error));
+            } else {
+                binding.textDateTime.setText(chatMessage.dateTime);
+                binding.textDateTime.setTextColor(ContextCompat.getColor(binding.getRoot().getContext(), R.color.secondary_text));
+            }
         }
     }
 
-    static class ReceivedMessageViewHolder extends RecyclerView.ViewHolder {
+    class ReceivedMessageViewHolder extends RecyclerView.ViewHolder {
 
         private final ItemContainerReceivedMessageBinding binding;
 
@@ -103,10 +192,10 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>{
             binding = itemContainerReceivedMessageBinding;
         }
 
-        void setData(ChatMessage chatMessage, Bitmap receiverProfileImage) {
+        void setData(ChatMessage chatMessage) {
             binding.textMessage.setText(chatMessage.message);
             binding.textDateTime.setText(chatMessage.dateTime);
-            binding.imageProfile.setImageBitmap(receiverProfileImage);
+            AvatarLoader.load(binding.imageProfile, receiverImageHash, receiverImage);
         }
     }
 
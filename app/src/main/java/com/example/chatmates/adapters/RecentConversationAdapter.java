@@ -1,30 +1,113 @@
 package com.example.chatmates.adapters;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Base64;
 import android.view.LayoutInflater;
+import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chatmates.databinding.ItemContainerRecentConversionBinding;
 import com.example.chatmates.listeners.ConversionListener;
 import com.example.chatmates.models.ChatMessage;
 import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.AvatarLoader;
+import com.example.chatmates.utilities.ConversationStore;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class RecentConversationAdapter extends RecyclerView.Adapter<RecentConversationAdapter.ConversionViewHolder> {
 
-    private final List<ChatMessage> chatMessages;
+    private final ConversationStore conversationStore;
     private final ConversionListener conversionListener;
     private OnConversationLongClickListener longClickListener; // New interface for long clicks
+    // Search results while a filter is active; null shows the whole store
+    private List<ChatMessage> filterResults;
 
-    public RecentConversationAdapter(List<ChatMessage> chatMessages, ConversionListener conversionListener) {
-        this.chatMessages = chatMessages;
+    public RecentConversationAdapter(ConversationStore conversationStore, ConversionListener conversionListener) {
+        this.conversationStore = conversationStore;
         this.conversionListener = conversionListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Callback for the store's changes. They reach the list as precise row updates while no
+     * filter is active; filtered results are refreshed by the caller instead.
+     */
+    public ListUpdateCallback getStoreUpdateCallback() {
+        return new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                if (filterResults == null) {
+                    notifyItemRangeInserted(position, count);
+                }
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                if (filterResults == null) {
+                    notifyItemRangeRemoved(position, count);
+                }
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                if (filterResults == null) {
+                    notifyItemMoved(fromPosition, toPosition);
+                }
+            }
+
+            @Override
+            public void onChanged(int position, int count, @Nullable Object payload) {
+                if (filterResults == null) {
+                    notifyItemRangeChanged(position, count, payload);
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the given search results, or the whole store again when passed null. The switch is
+     * diffed so rows present on both sides stay in place.
+     */
+    public void setFilterResults(@Nullable List<ChatMessage> results) {
+        if (results == null && filterResults == null) {
+            return;
+        }
+        List<ChatMessage> oldList = filterResults != null ? filterResults : conversationStore.toList();
+        List<ChatMessage> newList = results != null ? new ArrayList<>(results) : conversationStore.toList();
+        DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldList.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newList.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldList.get(oldItemPosition).conversationId.equals(newList.get(newItemPosition).conversationId);
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                // Conversations are replaced rather than edited in place
+                return oldList.get(oldItemPosition) == newList.get(newItemPosition);
+            }
+        });
+        filterResults = results != null ? newList : null;
+        diffResult.dispatchUpdatesTo(this);
+    }
+
+    private ChatMessage getItem(int position) {
+        return filterResults != null ? filterResults.get(position) : conversationStore.get(position);
     }
 
     public void setOnConversationLongClickListener(OnConversationLongClickListener listener) {
@@ -45,12 +128,23 @@ public class RecentConversationAdapter extends RecyclerView.Adapter<RecentConver
 
     @Override
     public void onBindViewHolder(@NonNull ConversionViewHolder holder, int position) {
-        holder.setData(chatMessages.get(position));
+        holder.setData(getItem(position));
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ConversionViewHolder holder) {
+        super.onViewRecycled(holder);
+        AvatarLoader.cancel(holder.binding.imageProfile);
     }
 
     @Override
     public int getItemCount() {
-        return chatMessages.size();
+        return filterResults != null ? filterResults.size() : conversationStore.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return conversationStore.getStableId(getItem(position).conversationId);
     }
 
     class ConversionViewHolder extends RecyclerView.ViewHolder {
@@ -63,8 +157,9 @@ public class RecentConversationAdapter extends RecyclerView.Adapter<RecentConver
 
             // Handle long-click
             binding.getRoot().setOnLongClickListener(v -> {
-                if (longClickListener != null) {
-                    longClickListener.onConversationLongClick(chatMessages.get(getAdapterPosition()));
+                int position = getAdapterPosition();
+                if (longClickListener != null && position != RecyclerView.NO_POSITION) {
+                    longClickListener.onConversationLongClick(getItem(position));
                     return true;
                 }
                 return false;
@@ -72,25 +167,27 @@ public class RecentConversationAdapter extends RecyclerView.Adapter<RecentConver
         }
 
         void setData(ChatMessage chatMessage) {
-            binding.imageProfile.setImageBitmap(getConversionImage(chatMessage.conversionImage));
+            AvatarLoader.load(binding.imageProfile, chatMessage.conversionImageHash, chatMessage.conversionImage);
             binding.textName.setText(chatMessage.conversionName);
             binding.textRecentMessage.setText(chatMessage.message);
+            if (chatMessage.unreadCount > 0) {
+                binding.textUnreadCount.setText(chatMessage.unreadCount > 99 ? "99+" : String.valueOf(chatMessage.unreadCount));
+                binding.textUnreadCount.setVisibility(View.VISIBLE);
+            } else {
+                binding.textUnreadCount.setVisibility(View.GONE);
+            }
             binding.getRoot().setOnClickListener(v -> {
                 User user = new User();
                 user.id = chatMessage.conversionId;
                 user.name = chatMessage.conversionName;
                 user.image = chatMessage.conversionImage;
+                user.imageHash = chatMessage.conversionImageHash;
                 user.email = chatMessage.conversionEmail;
                 conversionListener.onConversionClicked(user);
             });
         }
     }
 
-    private Bitmap getConversionImage(String encodedImage) {
-        byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-    }
-
     // Interface for long-click handling
     public interface OnConversationLongClickListener {
         void onConversationLongClick(ChatMessage chatMessage);
@@ -1,35 +1,56 @@
 package com.example.chatmates.adapters;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Base64;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.chatmates.databinding.ItemContainerUserBinding;
 import com.example.chatmates.listeners.UserListener;
 import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.AvatarLoader;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHolder> {
 
-    private List<User> users;
+    private static final DiffUtil.ItemCallback<User> DIFF_CALLBACK = new DiffUtil.ItemCallback<User>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull User oldUser, @NonNull User newUser) {
+            return Objects.equals(oldUser.id, newUser.id);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull User oldUser, @NonNull User newUser) {
+            return Objects.equals(oldUser.name, newUser.name)
+                    && Objects.equals(oldUser.email, newUser.email)
+                    && Objects.equals(oldUser.imageHash, newUser.imageHash)
+                    && Objects.equals(oldUser.image, newUser.image);
+        }
+    };
+
+    // Lists are diffed on a background thread, so a new search result only rebinds the rows
+    // that actually changed
+    private final AsyncListDiffer<User> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
     private final UserListener userListener;
 
     public UsersAdapter(List<User> users, UserListener userListener) {
-        this.users = users;
         this.userListener = userListener;
+        differ.submitList(new ArrayList<>(users));
     }
 
-    // Add the updateUserList method here
     public void updateUserList(List<User> newUsers) {
-        this.users = newUsers;
-        notifyDataSetChanged();
+        differ.submitList(new ArrayList<>(newUsers));
+    }
+
+    public List<User> getUsers() {
+        return differ.getCurrentList();
     }
 
     @NonNull
@@ -43,12 +64,18 @@ public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHold
 
     @Override
     public void onBindViewHolder(@NonNull UserViewHolder holder, int position) {
-        holder.setUserData(users.get(position));
+        holder.setUserData(differ.getCurrentList().get(position));
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull UserViewHolder holder) {
+        super.onViewRecycled(holder);
+        AvatarLoader.cancel(holder.binding.imageProfile);
     }
 
     @Override
     public int getItemCount() {
-        return users.size();
+        return differ.getCurrentList().size();
     }
 
     class UserViewHolder extends RecyclerView.ViewHolder {
@@ -63,15 +90,10 @@ public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHold
         void setUserData(User user) {
             binding.textName.setText(user.name);
             binding.textEmail.setText(user.email);
-            binding.imageProfile.setImageBitmap(getUserImage(user.image));
+            AvatarLoader.load(binding.imageProfile, user.imageHash, user.image);
             binding.getRoot().setOnClickListener(v -> userListener.onUserClicked(user));
         }
 
     }
-
-    private Bitmap getUserImage(String encodedImage) {
-        byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-    }
 }
 
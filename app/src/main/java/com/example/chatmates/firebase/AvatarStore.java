@@ -0,0 +1,89 @@
+package com.example.chatmates.firebase;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.example.chatmates.utilities.Constants;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Content-addressed store for avatar images. Each image is written once to avatars/{hash};
+ * user and conversation documents only carry the hash, so list queries and presence updates no
+ * longer ship image bytes and clients refetch an avatar only when its hash changes.
+ */
+public class AvatarStore {
+
+    private static final String TAG = "AvatarStore";
+    private static AvatarStore instance;
+
+    private final FirebaseFirestore database;
+
+    private AvatarStore(FirebaseFirestore database) {
+        this.database = database;
+    }
+
+    public static synchronized AvatarStore getInstance() {
+        if (instance == null) {
+            instance = new AvatarStore(FirebaseFirestore.getInstance());
+        }
+        return instance;
+    }
+
+    public static String hashOf(String encodedImage) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(encodedImage.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Adds the avatar, stored under its content hash, to the batch. Callers put it in the same
+     * batch as the document that starts pointing at the hash, so the hash never resolves to
+     * nothing. Writing the same image twice is a no-op in effect.
+     */
+    public void put(WriteBatch batch, String imageHash, String encodedImage) {
+        HashMap<String, Object> avatar = new HashMap<>();
+        avatar.put(Constants.KEY_IMAGE, encodedImage);
+        batch.set(database.collection(Constants.KEY_COLLECTION_AVATARS).document(imageHash), avatar);
+    }
+
+    /**
+     * Returns the Base64 avatar for the hash, or null if it cannot be fetched. Blocks, so it must
+     * not run on the main thread.
+     */
+    @WorkerThread
+    @Nullable
+    public String fetchBlocking(String imageHash) {
+        try {
+            DocumentSnapshot snapshot = Tasks.await(database.collection(Constants.KEY_COLLECTION_AVATARS)
+                    .document(imageHash)
+                    .get());
+            return snapshot.getString(Constants.KEY_IMAGE);
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Unable to fetch avatar " + imageHash, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+}
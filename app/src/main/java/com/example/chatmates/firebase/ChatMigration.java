@@ -0,0 +1,135 @@
+package com.example.chatmates.firebase;
+
+import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.ConversationKeys;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Moves a user's messages from the legacy flat "chats" collection into the per-conversation
+ * conversations/{key}/messages subcollections. Each document keeps its id and is deleted from
+ * "chats" in the same batch, so an interrupted run simply picks up where it stopped.
+ * Conversation documents created with random ids are then moved to their deterministic key,
+ * without overwriting a newer conversation already stored there.
+ */
+public class ChatMigration {
+
+    // Every migrated document costs a set and a delete, and a batch holds at most 500 writes
+    private static final int DOCUMENTS_PER_BATCH = 250;
+
+    public interface OnMigrationCompleteListener {
+        void onMigrationComplete(boolean isSuccessful);
+    }
+
+    private final FirebaseFirestore database;
+    private final String userId;
+
+    public ChatMigration(FirebaseFirestore database, String userId) {
+        this.database = database;
+        this.userId = userId;
+    }
+
+    public void migrate(OnMigrationCompleteListener listener) {
+        migrateNextBatch(Constants.KEY_SENDER_ID, () ->
+                migrateNextBatch(Constants.KEY_RECEIVER_ID, () ->
+                        rekeyConversations(Constants.KEY_SENDER_ID, () ->
+                                rekeyConversations(Constants.KEY_RECEIVER_ID, () ->
+                                        listener.onMigrationComplete(true), listener), listener), listener), listener);
+    }
+
+    private void migrateNextBatch(String field, Runnable onFieldDone, OnMigrationCompleteListener listener) {
+        database.collection(Constants.KEY_COLLECTION_CHAT)
+                .whereEqualTo(field, userId)
+                .limit(DOCUMENTS_PER_BATCH)
+                .get()
+                .addOnSuccessListener(snapshots -> {
+                    if (snapshots.isEmpty()) {
+                        onFieldDone.run();
+                        return;
+                    }
+                    buildBatch(snapshots).commit()
+                            .addOnSuccessListener(unused -> migrateNextBatch(field, onFieldDone, listener))
+                            .addOnFailureListener(e -> listener.onMigrationComplete(false));
+                })
+                .addOnFailureListener(e -> listener.onMigrationComplete(false));
+    }
+
+    private void rekeyConversations(String field, Runnable onFieldDone, OnMigrationCompleteListener listener) {
+        database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereEqualTo(field, userId)
+                .get()
+                .addOnSuccessListener(snapshots -> {
+                    List<Task<Void>> moves = new ArrayList<>();
+                    for (DocumentSnapshot document : snapshots.getDocuments()) {
+                        String senderId = document.getString(Constants.KEY_SENDER_ID);
+                        String receiverId = document.getString(Constants.KEY_RECEIVER_ID);
+                        if (senderId == null || receiverId == null) {
+                            continue;
+                        }
+                        String conversationKey = ConversationKeys.of(senderId, receiverId);
+                        if (!conversationKey.equals(document.getId())) {
+                            moves.add(rekey(document.getReference(), database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                                    .document(conversationKey)));
+                        }
+                    }
+                    Tasks.whenAll(moves)
+                            .addOnSuccessListener(unused -> onFieldDone.run())
+                            .addOnFailureListener(e -> listener.onMigrationComplete(false));
+                })
+                .addOnFailureListener(e -> listener.onMigrationComplete(false));
+    }
+
+    /**
+     * Moves a conversation document to its derived key. The key may already hold a conversation
+     * written since, so the stale document is merged in only if it is the newer of the two, and
+     * dropped otherwise.
+     */
+    private Task<Void> rekey(DocumentReference stale, DocumentReference target) {
+        return database.runTransaction(transaction -> {
+            DocumentSnapshot staleSnapshot = transaction.get(stale);
+            DocumentSnapshot targetSnapshot = transaction.get(target);
+            if (staleSnapshot.getData() == null) {
+                return null;
+            }
+            if (!targetSnapshot.exists() || isNewer(staleSnapshot, targetSnapshot)) {
+                transaction.set(target, staleSnapshot.getData(), SetOptions.merge());
+            }
+            transaction.delete(stale);
+            return null;
+        });
+    }
+
+    private static boolean isNewer(DocumentSnapshot first, DocumentSnapshot second) {
+        Date firstTimestamp = first.getDate(Constants.KEY_TIMESTAMP);
+        Date secondTimestamp = second.getDate(Constants.KEY_TIMESTAMP);
+        return firstTimestamp != null && (secondTimestamp == null || firstTimestamp.after(secondTimestamp));
+    }
+
+    private WriteBatch buildBatch(QuerySnapshot snapshots) {
+        WriteBatch batch = database.batch();
+        for (DocumentSnapshot document : snapshots.getDocuments()) {
+            String senderId = document.getString(Constants.KEY_SENDER_ID);
+            String receiverId = document.getString(Constants.KEY_RECEIVER_ID);
+            if (senderId != null && receiverId != null && document.getData() != null) {
+                batch.set(database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                        .document(ConversationKeys.of(senderId, receiverId))
+                        .collection(Constants.KEY_COLLECTION_MESSAGES)
+                        .document(document.getId()), document.getData());
+            }
+            // Documents without both participants can never be shown, so they are dropped
+            batch.delete(document.getReference());
+        }
+        return batch;
+    }
+
+}
@@ -0,0 +1,265 @@
+package com.example.chatmates.firebase;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.chatmates.utilities.ChatMatesDatabase;
+import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.MessageCache;
+import com.example.chatmates.utilities.PurgeStore;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.Source;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the messages of deleted conversations in the background. Deleting a conversation
+ * document leaves its messages subcollection behind, so each deleted conversation is recorded in
+ * {@link PurgeStore} and its messages are deleted in batches of up to 500, oldest first, with the
+ * progress checkpointed after every batch. A purge interrupted by an error or a killed process
+ * resumes where it stopped; a failed batch is retried with exponential backoff.
+ *
+ * <p>Only messages written before the conversation was deleted are purged, so the pair can start
+ * chatting again while the purge is still running. The bound is the server time of the owner's
+ * inbox tombstone, compared with the server-stamped updatedAt of each message, so neither
+ * phone's clock decides what is deleted.
+ */
+public class ConversationPurge {
+
+    private static final String TAG = "ConversationPurge";
+    private static final int MESSAGES_PER_BATCH = 500;
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    public interface Listener {
+        /**
+         * Called on the purge thread after every committed batch.
+         *
+         * @param messagesPerSecond throughput of the conversation's purge so far in this run
+         */
+        void onProgress(String conversationId, long deletedCount, double messagesPerSecond);
+
+        void onPurged(String conversationId, long deletedCount);
+    }
+
+    private static ConversationPurge instance;
+
+    private final PurgeStore store;
+    private final ChatMatesDatabase cacheDatabase;
+    private final FirebaseFirestore database;
+    private final ScheduledExecutorService scheduler;
+    @Nullable
+    private volatile Listener listener;
+    // Only touched on the scheduler
+    private boolean isRunning;
+    private int failedAttempts;
+
+    /**
+     * @param scheduler runs the purge; must run tasks one at a time. Its thread blocks on
+     *                  Firestore while a batch is in flight.
+     */
+    public ConversationPurge(ChatMatesDatabase cacheDatabase, FirebaseFirestore database, ScheduledExecutorService scheduler) {
+        this.store = new PurgeStore(cacheDatabase);
+        this.cacheDatabase = cacheDatabase;
+        this.database = database;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Creates the process wide purge and resumes the purges a previous run left unfinished. Call
+     * once from the application, after Firestore is configured.
+     */
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new ConversationPurge(ChatMatesDatabase.getInstance(context),
+                    FirebaseFirestore.getInstance(), Executors.newSingleThreadScheduledExecutor());
+            instance.scheduler.execute(instance::runPending);
+        }
+    }
+
+    public static synchronized ConversationPurge getInstance() {
+        return instance;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Records the purge durably and starts it. The local copy of the conversation is dropped
+     * right away. Call it once the owner's inbox tombstone for the conversation is committed,
+     * since the tombstone's server time bounds the purge.
+     */
+    public void purge(String conversationId, String ownerId) {
+        scheduler.execute(() -> {
+            store.add(conversationId, ownerId);
+            new MessageCache(cacheDatabase, conversationId).clear();
+            runPending();
+        });
+    }
+
+    private void runPending() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        try {
+            for (PurgeStore.Job job : store.loadAll()) {
+                run(job);
+            }
+            failedAttempts = 0;
+        } catch (Exception exception) {
+            failedAttempts++;
+            long backoffMillis = Math.min(INITIAL_BACKOFF_MILLIS << Math.min(failedAttempts - 1, 16), MAX_BACKOFF_MILLIS);
+            Log.w(TAG, "Purge failed, retrying in " + backoffMillis + " ms", exception);
+            scheduler.schedule(this::runPending, backoffMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            isRunning = false;
+        }
+    }
+
+    private void run(PurgeStore.Job job) throws Exception {
+        long cutoff = job.cutoff;
+        if (cutoff == PurgeStore.CUTOFF_UNRESOLVED) {
+            cutoff = resolveCutoff(job);
+            if (cutoff == PurgeStore.CUTOFF_UNRESOLVED) {
+                // Without the deletion time nothing can be told apart from a chat started again
+                Log.w(TAG, "No deletion time for " + job.conversationId + ", dropping its purge");
+                store.remove(job.conversationId);
+                return;
+            }
+            store.setCutoff(job.conversationId, cutoff);
+        }
+        Timestamp cutoffTimestamp = new Timestamp(cutoff / 1_000_000_000L, (int) (cutoff % 1_000_000_000L));
+        Progress progress = new Progress(job);
+        CollectionReference messages = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .document(job.conversationId)
+                .collection(Constants.KEY_COLLECTION_MESSAGES);
+        // updatedAt is server time like the cutoff, so the sender's clock cannot shift the bound
+        while (true) {
+            // Deleted messages drop out of the query, so the next batch is always the oldest rest
+            List<DocumentSnapshot> documents = await(messages
+                    .whereLessThanOrEqualTo(Constants.KEY_UPDATED_AT, cutoffTimestamp)
+                    .orderBy(Constants.KEY_UPDATED_AT)
+                    .limit(MESSAGES_PER_BATCH)
+                    .get()).getDocuments();
+            if (documents.isEmpty()) {
+                break;
+            }
+            delete(documents, progress);
+            if (documents.size() < MESSAGES_PER_BATCH) {
+                break;
+            }
+        }
+        purgeLegacy(messages, cutoffTimestamp.toDate(), progress);
+        store.remove(job.conversationId);
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onPurged(job.conversationId, progress.deletedCount);
+        }
+    }
+
+    /**
+     * Deletes the messages written before they carried an updatedAt. They all predate the
+     * deletion, so their client timestamps are only used to page through them; messages that do
+     * carry an updatedAt were left in place above for a reason and are skipped.
+     */
+    private void purgeLegacy(CollectionReference messages, Date cutoff, Progress progress) throws Exception {
+        DocumentSnapshot lastDocument = null;
+        while (true) {
+            Query query = messages.whereLessThanOrEqualTo(Constants.KEY_TIMESTAMP, cutoff)
+                    .orderBy(Constants.KEY_TIMESTAMP)
+                    .limit(MESSAGES_PER_BATCH);
+            if (lastDocument != null) {
+                query = query.startAfter(lastDocument);
+            }
+            List<DocumentSnapshot> documents = await(query.get()).getDocuments();
+            if (documents.isEmpty()) {
+                break;
+            }
+            List<DocumentSnapshot> legacyDocuments = new ArrayList<>();
+            for (DocumentSnapshot document : documents) {
+                if (document.get(Constants.KEY_UPDATED_AT) == null) {
+                    legacyDocuments.add(document);
+                }
+            }
+            if (!legacyDocuments.isEmpty()) {
+                delete(legacyDocuments, progress);
+            }
+            if (documents.size() < MESSAGES_PER_BATCH) {
+                break;
+            }
+            lastDocument = documents.get(documents.size() - 1);
+        }
+    }
+
+    /**
+     * Reads the server time of the owner's inbox tombstone, or returns CUTOFF_UNRESOLVED if it
+     * has none.
+     */
+    private long resolveCutoff(PurgeStore.Job job) throws Exception {
+        if (job.ownerId == null) {
+            return PurgeStore.CUTOFF_UNRESOLVED;
+        }
+        DocumentSnapshot tombstone = await(Inbox.entry(database, job.ownerId, job.conversationId).get(Source.SERVER));
+        Timestamp deletedAt = tombstone.getTimestamp(Constants.KEY_DELETED_AT);
+        return deletedAt != null
+                ? deletedAt.getSeconds() * 1_000_000_000L + deletedAt.getNanoseconds()
+                : PurgeStore.CUTOFF_UNRESOLVED;
+    }
+
+    private void delete(List<DocumentSnapshot> documents, Progress progress) throws Exception {
+        WriteBatch batch = database.batch();
+        for (DocumentSnapshot document : documents) {
+            batch.delete(document.getReference());
+        }
+        await(batch.commit());
+        String conversationId = progress.job.conversationId;
+        store.addProgress(conversationId, documents.size());
+        progress.deletedCount += documents.size();
+        progress.deletedThisRun += documents.size();
+        double messagesPerSecond = progress.deletedThisRun / ((System.nanoTime() - progress.startedAt) / 1e9);
+        Log.d(TAG, "Purged " + progress.deletedCount + " messages of " + conversationId
+                + " at " + Math.round(messagesPerSecond) + " messages/s");
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.onProgress(conversationId, progress.deletedCount, messagesPerSecond);
+        }
+    }
+
+    private static <T> T await(Task<T> task) throws Exception {
+        return Tasks.await(task, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * How far the purge of one conversation got, in total and in this run.
+     */
+    private static class Progress {
+
+        final PurgeStore.Job job;
+        final long startedAt = System.nanoTime();
+        long deletedCount;
+        long deletedThisRun;
+
+        Progress(PurgeStore.Job job) {
+            this.job = job;
+            this.deletedCount = job.deletedCount;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.example.chatmates.firebase;
+
+import com.example.chatmates.models.ChatMessage;
+import com.example.chatmates.utilities.Constants;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link MessageSync.Backend} over a conversation's messages subcollection. Every message write
+ * stamps updatedAt with the server time, and a deleted message stays behind as a tombstone, so
+ * a listener from the last seen updatedAt on sees every edit and delete.
+ */
+public class FirestoreMessageBackend implements MessageSync.Backend {
+
+    private final CollectionReference messagesCollection;
+
+    public FirestoreMessageBackend(CollectionReference messagesCollection) {
+        this.messagesCollection = messagesCollection;
+    }
+
+    /**
+     * Fields that turn a message into a tombstone. The text is dropped; the timestamp stays so
+     * history pages keep their boundaries.
+     */
+    public static HashMap<String, Object> tombstone() {
+        HashMap<String, Object> tombstone = new HashMap<>();
+        tombstone.put(Constants.KEY_DELETED, true);
+        tombstone.put(Constants.KEY_MESSAGE, FieldValue.delete());
+        tombstone.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+        return tombstone;
+    }
+
+    @Override
+    public void fetchLatest(int limit, Executor executor, MessageSync.PageCallback callback) {
+        messagesCollection.orderBy(Constants.KEY_TIMESTAMP)
+                .limitToLast(limit)
+                .get()
+                .addOnCompleteListener(executor, task -> callback.onPage(
+                        task.isSuccessful() && task.getResult() != null ? toPage(task.getResult().getDocuments()) : null));
+    }
+
+    @Override
+    public void fetchBefore(Date before, int limit, Executor executor, MessageSync.PageCallback callback) {
+        messagesCollection.orderBy(Constants.KEY_TIMESTAMP)
+                .endBefore(before)
+                .limitToLast(limit)
+                .get()
+                .addOnCompleteListener(executor, task -> callback.onPage(
+                        task.isSuccessful() && task.getResult() != null ? toPage(task.getResult().getDocuments()) : null));
+    }
+
+    @Override
+    public ListenerRegistration listenChangedSince(long watermark, Executor executor, MessageSync.PageCallback callback) {
+        Timestamp since = new Timestamp(watermark / 1_000_000_000L, (int) (watermark % 1_000_000_000L));
+        return messagesCollection.whereGreaterThan(Constants.KEY_UPDATED_AT, since)
+                .orderBy(Constants.KEY_UPDATED_AT)
+                .addSnapshotListener(executor, (value, error) -> {
+                    if (error != null || value == null) {
+                        callback.onPage(null);
+                        return;
+                    }
+                    List<DocumentSnapshot> changedDocuments = new ArrayList<>();
+                    List<String> removedIds = new ArrayList<>();
+                    for (DocumentChange documentChange : value.getDocumentChanges()) {
+                        if (documentChange.getType() == DocumentChange.Type.REMOVED) {
+                            // Updates never move updatedAt back, so this is a hard delete of a document
+                            // the query already matched. Older purged documents are not seen here; the
+                            // conversation's inbox tombstone clears the cache instead.
+                            removedIds.add(documentChange.getDocument().getId());
+                        } else {
+                            changedDocuments.add(documentChange.getDocument());
+                        }
+                    }
+                    MessageSync.Page page = toPage(changedDocuments);
+                    page.deletedIds.addAll(removedIds);
+                    callback.onPage(page);
+                });
+    }
+
+    private static MessageSync.Page toPage(List<? extends DocumentSnapshot> documents) {
+        List<ChatMessage> messages = new ArrayList<>();
+        List<String> deletedIds = new ArrayList<>();
+        long watermark = -1;
+        Date oldestTimestamp = null;
+        for (DocumentSnapshot document : documents) {
+            Date timestamp = document.getDate(Constants.KEY_TIMESTAMP);
+            if (timestamp != null && (oldestTimestamp == null || timestamp.before(oldestTimestamp))) {
+                oldestTimestamp = timestamp;
+            }
+            // A pending server timestamp has no value yet; the confirmed write comes back later
+            Timestamp updatedAt = document.getTimestamp(Constants.KEY_UPDATED_AT);
+            if (updatedAt != null && !document.getMetadata().hasPendingWrites()) {
+                watermark = Math.max(watermark, updatedAt.getSeconds() * 1_000_000_000L + updatedAt.getNanoseconds());
+            }
+            if (Boolean.TRUE.equals(document.getBoolean(Constants.KEY_DELETED))) {
+                deletedIds.add(document.getId());
+            } else if (timestamp != null) {
+                messages.add(toChatMessage(document, timestamp));
+            }
+        }
+        return new MessageSync.Page(messages, deletedIds, watermark, documents.size(), oldestTimestamp);
+    }
+
+    private static ChatMessage toChatMessage(DocumentSnapshot document, Date timestamp) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.senderId = document.getString(Constants.KEY_SENDER_ID);
+        chatMessage.receiverId = document.getString(Constants.KEY_RECEIVER_ID);
+        chatMessage.message = document.getString(Constants.KEY_MESSAGE);
+        chatMessage.dateObject = timestamp;
+        chatMessage.sentMessageDocumentId = document.getId();
+        // Includes the local echo of a write the server has not confirmed yet
+        chatMessage.deliveryState = document.getMetadata().hasPendingWrites()
+                ? ChatMessage.STATE_PENDING : ChatMessage.STATE_SENT;
+        return chatMessage;
+    }
+
+}
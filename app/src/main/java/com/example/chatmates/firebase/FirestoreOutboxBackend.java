@@ -0,0 +1,159 @@
+package com.example.chatmates.firebase;
+
+import com.example.chatmates.models.OutgoingMessage;
+import com.example.chatmates.utilities.AppExecutors;
+import com.example.chatmates.utilities.Constants;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link Outbox.Backend} that writes a flush as one transaction. Messages are set under their
+ * client generated id, so a retried commit does not duplicate them, and each conversation in the
+ * flush gets a single summary update for its newest message. The transaction first reads the
+ * messages and only writes and counts as unread those the server does not have yet, so a flush
+ * that already landed but was reported as failed neither counts its messages twice nor undoes an
+ * edit or deletion made since. Unlike a batch, a
+ * transaction is never queued offline by Firestore, so only the outbox replays a flush.
+ */
+public class FirestoreOutboxBackend implements Outbox.Backend {
+
+    private final FirebaseFirestore database;
+
+    public FirestoreOutboxBackend(FirebaseFirestore database) {
+        this.database = database;
+    }
+
+    @Override
+    public void commit(List<OutgoingMessage> messages, Outbox.CommitCallback callback) {
+        database.runTransaction(transaction -> {
+            // Reads must come before every write of the transaction
+            Set<String> storedIds = new HashSet<>();
+            for (OutgoingMessage outgoingMessage : messages) {
+                if (transaction.get(message(outgoingMessage)).exists()) {
+                    storedIds.add(outgoingMessage.messageId);
+                }
+            }
+            putMessages(transaction, messages, storedIds);
+            return null;
+        }).addOnCompleteListener(AppExecutors.background(), task -> callback.onCommitted(resultOf(task)));
+    }
+
+    private static int resultOf(Task<?> task) {
+        if (task.isSuccessful()) {
+            return Outbox.RESULT_COMMITTED;
+        }
+        Exception exception = task.getException();
+        if (exception instanceof FirebaseFirestoreException) {
+            switch (((FirebaseFirestoreException) exception).getCode()) {
+                case INVALID_ARGUMENT:
+                case PERMISSION_DENIED:
+                case OUT_OF_RANGE:
+                case UNIMPLEMENTED:
+                    return Outbox.RESULT_REJECTED;
+                default:
+                    break;
+            }
+        }
+        return Outbox.RESULT_FAILED;
+    }
+
+    private void putMessages(Transaction transaction, List<OutgoingMessage> messages, Set<String> storedIds) {
+        Map<String, List<OutgoingMessage>> messagesByConversation = new LinkedHashMap<>();
+        for (OutgoingMessage outgoingMessage : messages) {
+            // A message the server already has may since have been edited or deleted, and
+            // writing it again would undo that
+            if (!storedIds.contains(outgoingMessage.messageId)) {
+                HashMap<String, Object> message = new HashMap<>();
+                message.put(Constants.KEY_SENDER_ID, outgoingMessage.senderId);
+                message.put(Constants.KEY_RECEIVER_ID, outgoingMessage.receiverId);
+                message.put(Constants.KEY_MESSAGE, outgoingMessage.message);
+                message.put(Constants.KEY_TIMESTAMP, outgoingMessage.dateObject);
+                message.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+                transaction.set(message(outgoingMessage), message);
+            }
+            List<OutgoingMessage> conversationMessages = messagesByConversation.get(outgoingMessage.conversationId);
+            if (conversationMessages == null) {
+                conversationMessages = new ArrayList<>();
+                messagesByConversation.put(outgoingMessage.conversationId, conversationMessages);
+            }
+            conversationMessages.add(outgoingMessage);
+        }
+        for (List<OutgoingMessage> conversationMessages : messagesByConversation.values()) {
+            int newCount = 0;
+            for (OutgoingMessage outgoingMessage : conversationMessages) {
+                if (!storedIds.contains(outgoingMessage.messageId)) {
+                    newCount++;
+                }
+            }
+            putConversation(transaction, conversationMessages, newCount);
+        }
+    }
+
+    /**
+     * @param newCount messages of the conversation the server did not have yet, which are the
+     *                 only ones counted as unread
+     */
+    private void putConversation(Transaction transaction, List<OutgoingMessage> conversationMessages, int newCount) {
+        OutgoingMessage newest = conversationMessages.get(conversationMessages.size() - 1);
+        String lastMessage = newest.senderName + ": " + newest.message;
+        HashMap<String, Object> conversation = new HashMap<>();
+        for (OutgoingMessage outgoingMessage : conversationMessages) {
+            // Only the send that starts the conversation names its participants, later merges keep them
+            if (outgoingMessage.isNewConversation) {
+                conversation.put(Constants.KEY_SENDER_ID, outgoingMessage.senderId);
+                conversation.put(Constants.KEY_SENDER_NAME, outgoingMessage.senderName);
+                conversation.put(Constants.KEY_SENDER_IMAGE_HASH, outgoingMessage.senderImageHash);
+                conversation.put(Constants.KEY_SENDER_EMAIL, outgoingMessage.senderEmail);
+                conversation.put(Constants.KEY_RECEIVER_ID, outgoingMessage.receiverId);
+                conversation.put(Constants.KEY_RECEIVER_NAME, outgoingMessage.receiverName);
+                conversation.put(Constants.KEY_RECEIVER_IMAGE_HASH, outgoingMessage.receiverImageHash);
+                conversation.put(Constants.KEY_RECEIVER_EMAIL, outgoingMessage.receiverEmail);
+                break;
+            }
+        }
+        conversation.put(Constants.KEY_LAST_MESSAGE, lastMessage);
+        conversation.put(Constants.KEY_TIMESTAMP, newest.dateObject);
+        if (newCount > 0) {
+            HashMap<String, Object> unreadCounts = new HashMap<>();
+            unreadCounts.put(newest.receiverId, FieldValue.increment(newCount));
+            conversation.put(Constants.KEY_UNREAD_COUNTS, unreadCounts);
+        }
+        // A merge instead of an update, so a send racing the creation of the conversation never
+        // fails the whole commit
+        transaction.set(conversation(newest.conversationId), conversation, SetOptions.merge());
+
+        Inbox.putEntry(transaction, database, newest.senderId, newest.conversationId,
+                newest.receiverId, newest.receiverName, newest.receiverEmail, newest.receiverImageHash,
+                lastMessage, newest.dateObject);
+        Inbox.putEntry(transaction, database, newest.receiverId, newest.conversationId,
+                newest.senderId, newest.senderName, newest.senderEmail, newest.senderImageHash,
+                lastMessage, newest.dateObject);
+        if (newCount > 0) {
+            Inbox.putUnreadIncrement(transaction, database, newest.receiverId, newest.conversationId, newCount);
+        }
+    }
+
+    private DocumentReference message(OutgoingMessage outgoingMessage) {
+        return conversation(outgoingMessage.conversationId)
+                .collection(Constants.KEY_COLLECTION_MESSAGES)
+                .document(outgoingMessage.messageId);
+    }
+
+    private DocumentReference conversation(String conversationId) {
+        return database.collection(Constants.KEY_COLLECTION_CONVERSATIONS).document(conversationId);
+    }
+
+}
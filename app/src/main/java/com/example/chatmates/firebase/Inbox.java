@@ -0,0 +1,215 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.Nullable;
+
+import com.example.chatmates.models.ChatMessage;
+import com.example.chatmates.utilities.Constants;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Per-user view of the conversation list in users/{id}/inbox/{conversationId}. Every write to a
+ * conversation also writes an entry for each participant, stamped with a server-assigned version,
+ * and a deleted conversation leaves a tombstone entry instead of disappearing. A client that
+ * remembers the newest version it has seen can then ask for only the entries that changed since,
+ * with one listener instead of one per side of the conversation.
+ */
+public class Inbox {
+
+    // Every backfilled conversation costs one write, and a batch holds at most 500
+    private static final int ENTRIES_PER_BATCH = 400;
+
+    public interface OnBackfillCompleteListener {
+        void onBackfillComplete(boolean isSuccessful);
+    }
+
+    private Inbox() {
+    }
+
+    public static DocumentReference entry(FirebaseFirestore database, String ownerId, String conversationId) {
+        return database.collection(Constants.KEY_COLLECTION_USERS)
+                .document(ownerId)
+                .collection(Constants.KEY_COLLECTION_INBOX)
+                .document(conversationId);
+    }
+
+    /**
+     * Entries of the owner's inbox changed after the given version, oldest change first.
+     */
+    public static Query changedSince(FirebaseFirestore database, String ownerId, long versionNanos) {
+        return database.collection(Constants.KEY_COLLECTION_USERS)
+                .document(ownerId)
+                .collection(Constants.KEY_COLLECTION_INBOX)
+                .whereGreaterThan(Constants.KEY_VERSION, timestampOf(versionNanos))
+                .orderBy(Constants.KEY_VERSION);
+    }
+
+    /**
+     * Adds the inbox entry of one participant to the batch. The peer fields describe the other
+     * participant, as seen from the owner's side.
+     */
+    public static void putEntry(WriteBatch batch, FirebaseFirestore database, String ownerId, String conversationId,
+                                String peerId, String peerName, String peerEmail, String peerImageHash,
+                                String lastMessage, Date timestamp) {
+        batch.set(entry(database, ownerId, conversationId),
+                entryOf(peerId, peerName, peerEmail, peerImageHash, lastMessage, timestamp), SetOptions.merge());
+    }
+
+    /**
+     * Same as {@link #putEntry(WriteBatch, FirebaseFirestore, String, String, String, String, String, String, String, Date)},
+     * for writes that go through a transaction.
+     */
+    public static void putEntry(Transaction transaction, FirebaseFirestore database, String ownerId, String conversationId,
+                                String peerId, String peerName, String peerEmail, String peerImageHash,
+                                String lastMessage, Date timestamp) {
+        transaction.set(entry(database, ownerId, conversationId),
+                entryOf(peerId, peerName, peerEmail, peerImageHash, lastMessage, timestamp), SetOptions.merge());
+    }
+
+    private static HashMap<String, Object> entryOf(String peerId, String peerName, String peerEmail, String peerImageHash,
+                                                   String lastMessage, Date timestamp) {
+        HashMap<String, Object> entry = new HashMap<>();
+        entry.put(Constants.KEY_PEER_ID, peerId);
+        entry.put(Constants.KEY_PEER_NAME, peerName);
+        entry.put(Constants.KEY_PEER_EMAIL, peerEmail);
+        entry.put(Constants.KEY_PEER_IMAGE_HASH, peerImageHash);
+        entry.put(Constants.KEY_LAST_MESSAGE, lastMessage);
+        entry.put(Constants.KEY_TIMESTAMP, timestamp);
+        entry.put(Constants.KEY_DELETED, false);
+        // Commit time on the server, so versions only grow and clock skew between phones
+        // cannot make a client skip a change
+        entry.put(Constants.KEY_VERSION, FieldValue.serverTimestamp());
+        return entry;
+    }
+
+    /**
+     * Refreshes how the peer appears in an existing entry, leaving the conversation state alone.
+     * This is an update, so it fails instead of creating a stub entry with no conversation in it.
+     */
+    public static void putPeerProfile(WriteBatch batch, DocumentReference entry,
+                                      String peerName, String peerEmail, @Nullable String peerImageHash) {
+        HashMap<String, Object> profile = new HashMap<>();
+        profile.put(Constants.KEY_PEER_NAME, peerName);
+        profile.put(Constants.KEY_PEER_EMAIL, peerEmail);
+        if (peerImageHash != null) {
+            profile.put(Constants.KEY_PEER_IMAGE_HASH, peerImageHash);
+        }
+        profile.put(Constants.KEY_VERSION, FieldValue.serverTimestamp());
+        batch.update(entry, profile);
+    }
+
+    /**
+     * Marks the owner's entry deleted. The deletion time is kept apart from the version, which
+     * later writes move on, so it can bound the purge of the conversation's messages.
+     */
+    public static void putTombstone(WriteBatch batch, FirebaseFirestore database, String ownerId, String conversationId) {
+        HashMap<String, Object> tombstone = new HashMap<>();
+        tombstone.put(Constants.KEY_DELETED, true);
+        tombstone.put(Constants.KEY_DELETED_AT, FieldValue.serverTimestamp());
+        tombstone.put(Constants.KEY_VERSION, FieldValue.serverTimestamp());
+        batch.set(entry(database, ownerId, conversationId), tombstone, SetOptions.merge());
+    }
+
+    /**
+     * Counts more unread messages in the owner's entry. The increment is applied on the server,
+     * so messages sent from several devices at once are all counted.
+     */
+    public static void putUnreadIncrement(Transaction transaction, FirebaseFirestore database, String ownerId,
+                                          String conversationId, long count) {
+        HashMap<String, Object> unread = new HashMap<>();
+        unread.put(Constants.KEY_UNREAD_COUNT, FieldValue.increment(count));
+        transaction.set(entry(database, ownerId, conversationId), unread, SetOptions.merge());
+    }
+
+    public static void putRead(WriteBatch batch, FirebaseFirestore database, String ownerId, String conversationId) {
+        HashMap<String, Object> read = new HashMap<>();
+        read.put(Constants.KEY_UNREAD_COUNT, 0);
+        read.put(Constants.KEY_VERSION, FieldValue.serverTimestamp());
+        batch.set(entry(database, ownerId, conversationId), read, SetOptions.merge());
+    }
+
+    public static boolean isTombstone(DocumentSnapshot entry) {
+        return Boolean.TRUE.equals(entry.getBoolean(Constants.KEY_DELETED));
+    }
+
+    public static ChatMessage toConversation(DocumentSnapshot entry) {
+        ChatMessage conversation = new ChatMessage();
+        conversation.conversationId = entry.getId();
+        conversation.conversionId = entry.getString(Constants.KEY_PEER_ID);
+        conversation.conversionName = entry.getString(Constants.KEY_PEER_NAME);
+        conversation.conversionEmail = entry.getString(Constants.KEY_PEER_EMAIL);
+        conversation.conversionImageHash = entry.getString(Constants.KEY_PEER_IMAGE_HASH);
+        conversation.message = entry.getString(Constants.KEY_LAST_MESSAGE);
+        conversation.dateObject = entry.getDate(Constants.KEY_TIMESTAMP);
+        Long unreadCount = entry.getLong(Constants.KEY_UNREAD_COUNT);
+        conversation.unreadCount = unreadCount != null ? unreadCount.intValue() : 0;
+        return conversation;
+    }
+
+    /**
+     * Version of the entry in nanoseconds since the epoch, or -1 while the server has not
+     * assigned it yet.
+     */
+    public static long versionOf(DocumentSnapshot entry) {
+        Timestamp version = entry.getTimestamp(Constants.KEY_VERSION);
+        return version != null ? version.getSeconds() * 1_000_000_000L + version.getNanoseconds() : -1;
+    }
+
+    private static Timestamp timestampOf(long versionNanos) {
+        return new Timestamp(versionNanos / 1_000_000_000L, (int) (versionNanos % 1_000_000_000L));
+    }
+
+    /**
+     * Fills the user's inbox from the conversations documents they take part in, for accounts
+     * whose conversations predate the inbox.
+     */
+    public static void backfill(FirebaseFirestore database, String userId, OnBackfillCompleteListener listener) {
+        Task<QuerySnapshot> sent = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereEqualTo(Constants.KEY_SENDER_ID, userId).get();
+        Task<QuerySnapshot> received = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereEqualTo(Constants.KEY_RECEIVER_ID, userId).get();
+        Tasks.whenAllSuccess(sent, received)
+                .addOnSuccessListener(results -> {
+                    List<DocumentSnapshot> conversations = new ArrayList<>();
+                    for (Object result : results) {
+                        conversations.addAll(((QuerySnapshot) result).getDocuments());
+                    }
+                    List<Task<Void>> commits = new ArrayList<>();
+                    for (int start = 0; start < conversations.size(); start += ENTRIES_PER_BATCH) {
+                        WriteBatch batch = database.batch();
+                        for (DocumentSnapshot conversation : conversations.subList(start,
+                                Math.min(start + ENTRIES_PER_BATCH, conversations.size()))) {
+                            boolean isSender = userId.equals(conversation.getString(Constants.KEY_SENDER_ID));
+                            putEntry(batch, database, userId, conversation.getId(),
+                                    conversation.getString(isSender ? Constants.KEY_RECEIVER_ID : Constants.KEY_SENDER_ID),
+                                    conversation.getString(isSender ? Constants.KEY_RECEIVER_NAME : Constants.KEY_SENDER_NAME),
+                                    conversation.getString(isSender ? Constants.KEY_RECEIVER_EMAIL : Constants.KEY_SENDER_EMAIL),
+                                    conversation.getString(isSender ? Constants.KEY_RECEIVER_IMAGE_HASH : Constants.KEY_SENDER_IMAGE_HASH),
+                                    conversation.getString(Constants.KEY_LAST_MESSAGE),
+                                    conversation.getDate(Constants.KEY_TIMESTAMP));
+                        }
+                        commits.add(batch.commit());
+                    }
+                    Tasks.whenAll(commits)
+                            .addOnSuccessListener(unused -> listener.onBackfillComplete(true))
+                            .addOnFailureListener(e -> listener.onBackfillComplete(false));
+                })
+                .addOnFailureListener(e -> listener.onBackfillComplete(false));
+    }
+
+}
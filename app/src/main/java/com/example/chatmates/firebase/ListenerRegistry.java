@@ -0,0 +1,90 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the Firestore snapshot listeners of one screen. Subscriptions are deduplicated by a query
+ * key and all of them are removed when the owner is destroyed, so re-running a listen method never
+ * stacks a second listener on the same query.
+ */
+public class ListenerRegistry implements DefaultLifecycleObserver {
+
+    private static final AtomicInteger totalActiveCount = new AtomicInteger();
+
+    public interface Subscription {
+        ListenerRegistration subscribe();
+    }
+
+    private final Map<String, ListenerRegistration> registrations = new HashMap<>();
+
+    public ListenerRegistry(LifecycleOwner owner) {
+        owner.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Subscribes unless a listener with the same key is already active. Returns whether a new
+     * listener was attached.
+     */
+    public boolean register(String key, Subscription subscription) {
+        if (registrations.containsKey(key)) {
+            return false;
+        }
+        registrations.put(key, subscription.subscribe());
+        totalActiveCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drops the listener with the given key, if any, and subscribes again. Use this when the
+     * caller needs the initial snapshot to be delivered once more.
+     */
+    public void replace(String key, Subscription subscription) {
+        remove(key);
+        register(key, subscription);
+    }
+
+    public void remove(String key) {
+        ListenerRegistration registration = registrations.remove(key);
+        if (registration != null) {
+            registration.remove();
+            totalActiveCount.decrementAndGet();
+        }
+    }
+
+    public void removeAll() {
+        for (ListenerRegistration registration : registrations.values()) {
+            registration.remove();
+        }
+        totalActiveCount.addAndGet(-registrations.size());
+        registrations.clear();
+    }
+
+    /**
+     * Listeners currently attached by this registry.
+     */
+    public int getActiveCount() {
+        return registrations.size();
+    }
+
+    /**
+     * Listeners currently attached across every registry in the process.
+     */
+    public static int getTotalActiveCount() {
+        return totalActiveCount.get();
+    }
+
+    @Override
+    public void onDestroy(@NonNull LifecycleOwner owner) {
+        removeAll();
+        owner.getLifecycle().removeObserver(this);
+    }
+
+}
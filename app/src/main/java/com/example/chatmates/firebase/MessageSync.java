@@ -0,0 +1,247 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+
+import com.example.chatmates.models.ChatMessage;
+import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.MessageCache;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps one chat in step with the server through a {@link MessageCache}. Opening the chat shows
+ * the cached messages right away and then listens only for messages whose updatedAt is past the
+ * cache's watermark. Edits arrive as changed messages and deletes as tombstones, and both are
+ * written to the cache before they are shown.
+ *
+ * <p>The server is reached through {@link Backend}, and all cache work runs on one worker
+ * executor, so the class runs as well against an in-memory database and a fake backend.
+ */
+public class MessageSync {
+
+    /**
+     * A set of message documents as read from the server.
+     */
+    public static class Page {
+        public final List<ChatMessage> messages;
+        public final List<String> deletedIds;
+        // Newest confirmed updatedAt in nanoseconds, or -1 if the page has none
+        public final long watermark;
+        // Documents in the page including tombstones, and the oldest timestamp among them
+        public final int documentCount;
+        @Nullable
+        public final Date oldestTimestamp;
+
+        public Page(List<ChatMessage> messages, List<String> deletedIds, long watermark,
+                    int documentCount, @Nullable Date oldestTimestamp) {
+            this.messages = messages;
+            this.deletedIds = deletedIds;
+            this.watermark = watermark;
+            this.documentCount = documentCount;
+            this.oldestTimestamp = oldestTimestamp;
+        }
+    }
+
+    public interface PageCallback {
+        /**
+         * Called on the executor passed to the {@link Backend} with the page, or null if the
+         * request failed.
+         */
+        void onPage(@Nullable Page page);
+    }
+
+    /**
+     * The server side of one chat's messages.
+     */
+    public interface Backend {
+        /**
+         * Reads the newest {@code limit} messages by timestamp.
+         */
+        void fetchLatest(int limit, Executor executor, PageCallback callback);
+
+        /**
+         * Reads the {@code limit} messages sent right before the given time.
+         */
+        void fetchBefore(Date before, int limit, Executor executor, PageCallback callback);
+
+        /**
+         * Delivers every message whose updatedAt is past the watermark, then every later change.
+         */
+        ListenerRegistration listenChangedSince(long watermark, Executor executor, PageCallback callback);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the callback executor with messages to add or replace, oldest first, and the
+         * ids of messages to drop.
+         */
+        void onMessagesChanged(List<ChatMessage> upserted, List<String> removedIds);
+
+        void onSyncFailed();
+    }
+
+    public interface OlderMessagesCallback {
+        void onOlderMessages(List<ChatMessage> messages, boolean hasOlderMessages);
+
+        void onFailed();
+    }
+
+    private final MessageCache cache;
+    private final Backend backend;
+    private final Executor workExecutor;
+    private final Executor callbackExecutor;
+    // Only touched on the work executor
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("MMMM dd, yyyy - hh:mm a", Locale.getDefault());
+
+    /**
+     * @param workExecutor     runs cache and parsing work; must run tasks one at a time and in
+     *                         order, so live changes are stored after the page they follow
+     * @param callbackExecutor runs the listener callbacks, normally the main thread
+     */
+    public MessageSync(MessageCache cache, Backend backend, Executor workExecutor, Executor callbackExecutor) {
+        this.cache = cache;
+        this.backend = backend;
+        this.workExecutor = workExecutor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Shows the cached newest page, fetches it first if the chat was never opened on this
+     * device, then listens for changes. Removing the returned registration stops whichever of
+     * these steps is still running.
+     */
+    @MainThread
+    public ListenerRegistration open(Listener listener) {
+        OpenRegistration registration = new OpenRegistration();
+        workExecutor.execute(() -> {
+            if (cache.isSeeded()) {
+                List<ChatMessage> cached = format(cache.loadLatest(Constants.MESSAGE_PAGE_SIZE));
+                deliver(registration, listener, cached, Collections.emptyList());
+                listen(registration, listener);
+                return;
+            }
+            backend.fetchLatest(Constants.MESSAGE_PAGE_SIZE, workExecutor, page -> {
+                if (page == null) {
+                    failed(registration, listener);
+                    return;
+                }
+                cache.apply(page.messages, page.deletedIds, page.watermark,
+                        floorOf(page, Constants.MESSAGE_PAGE_SIZE));
+                deliver(registration, listener, format(page.messages), Collections.emptyList());
+                listen(registration, listener);
+            });
+        });
+        return registration;
+    }
+
+    /**
+     * Loads the page before the given time, from disk when the cached history reaches that far
+     * and from the server otherwise.
+     */
+    @MainThread
+    public void loadOlder(Date before, OlderMessagesCallback callback) {
+        workExecutor.execute(() -> {
+            List<ChatMessage> cached = cache.loadBefore(before, Constants.MESSAGE_PAGE_SIZE);
+            if (cached.size() == Constants.MESSAGE_PAGE_SIZE) {
+                List<ChatMessage> messages = format(cached);
+                callbackExecutor.execute(() -> callback.onOlderMessages(messages, true));
+                return;
+            }
+            backend.fetchBefore(before, Constants.MESSAGE_PAGE_SIZE, workExecutor, page -> {
+                if (page == null) {
+                    callbackExecutor.execute(callback::onFailed);
+                    return;
+                }
+                // Changes newer than the watermark still reach the cache through the listener
+                cache.apply(page.messages, page.deletedIds, -1, floorOf(page, Constants.MESSAGE_PAGE_SIZE));
+                List<ChatMessage> messages = format(page.messages);
+                boolean hasOlderMessages = page.documentCount == Constants.MESSAGE_PAGE_SIZE;
+                callbackExecutor.execute(() -> callback.onOlderMessages(messages, hasOlderMessages));
+            });
+        });
+    }
+
+    private void listen(OpenRegistration registration, Listener listener) {
+        if (registration.isRemoved) {
+            return;
+        }
+        long watermark = cache.getWatermark();
+        registration.attach(backend.listenChangedSince(watermark, workExecutor, page -> {
+            if (page == null) {
+                failed(registration, listener);
+                return;
+            }
+            cache.apply(page.messages, page.deletedIds, page.watermark, null);
+            deliver(registration, listener, format(page.messages), page.deletedIds);
+        }));
+    }
+
+    /**
+     * A short page holds the start of the history, so the cache is complete from the beginning.
+     */
+    @Nullable
+    private static Date floorOf(Page page, int limit) {
+        return page.documentCount < limit ? new Date(0) : page.oldestTimestamp;
+    }
+
+    private List<ChatMessage> format(List<ChatMessage> messages) {
+        for (ChatMessage chatMessage : messages) {
+            chatMessage.dateTime = dateFormat.format(chatMessage.dateObject);
+        }
+        return messages;
+    }
+
+    private void deliver(OpenRegistration registration, Listener listener,
+                         List<ChatMessage> upserted, List<String> removedIds) {
+        List<String> removed = new ArrayList<>(removedIds);
+        callbackExecutor.execute(() -> {
+            if (!registration.isRemoved) {
+                listener.onMessagesChanged(upserted, removed);
+            }
+        });
+    }
+
+    private void failed(OpenRegistration registration, Listener listener) {
+        callbackExecutor.execute(() -> {
+            if (!registration.isRemoved) {
+                listener.onSyncFailed();
+            }
+        });
+    }
+
+    /**
+     * Stands in for the live listener until it is attached, which happens only after the cache
+     * was read or seeded.
+     */
+    private static class OpenRegistration implements ListenerRegistration {
+
+        private volatile boolean isRemoved;
+        private ListenerRegistration attached;
+
+        synchronized void attach(ListenerRegistration registration) {
+            if (isRemoved) {
+                registration.remove();
+            } else {
+                attached = registration;
+            }
+        }
+
+        @Override
+        public synchronized void remove() {
+            isRemoved = true;
+            if (attached != null) {
+                attached.remove();
+                attached = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+package com.example.chatmates.firebase;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.chatmates.models.OutgoingMessage;
+import com.example.chatmates.utilities.ChatMatesDatabase;
+import com.example.chatmates.utilities.OutboxStore;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable queue of sent messages. A send is first written to {@link OutboxStore}, then flushed to
+ * the server together with whatever else was queued in the meantime, as one atomic commit that
+ * also updates the conversation and both inboxes. A failed commit stays queued and is retried
+ * with exponential backoff, and the queue left over by a killed process is flushed on the next
+ * start. A commit the server rejects for good is retried one message at a time to find the
+ * offending message, which is then parked until the user retries it, so it cannot hold up the
+ * rest of the queue.
+ *
+ * <p>The server is reached through {@link Backend} and all queue work runs on one scheduler, so
+ * the class runs as well against an in-memory database and a fake backend.
+ */
+public class Outbox {
+
+    private static final String TAG = "Outbox";
+    // Sends made within this window of each other go out in the same commit
+    private static final long COALESCE_MILLIS = 100;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    // Each message costs one write, each conversation in the commit four more, of at most 500
+    private static final int MESSAGES_PER_COMMIT = 100;
+
+    public static final int RESULT_COMMITTED = 0;
+    // The commit may succeed if tried again, e.g. the device was offline
+    public static final int RESULT_FAILED = 1;
+    // The server refused the commit and would refuse it again, e.g. for lack of permission
+    public static final int RESULT_REJECTED = 2;
+
+    public interface CommitCallback {
+        /**
+         * May be called on any thread with one of the RESULT_ constants.
+         */
+        void onCommitted(int result);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the outbox scheduler with the ids of the messages a commit carried.
+         */
+        void onCommitted(List<String> messageIds);
+
+        /**
+         * Called on the outbox scheduler when a commit failed; its messages stay queued, or are
+         * parked if the server rejected them.
+         */
+        void onCommitFailed(List<String> messageIds);
+    }
+
+    public interface QueuedCallback {
+        /**
+         * Called on the outbox scheduler.
+         */
+        void onQueued(List<OutgoingMessage> messages);
+    }
+
+    public interface Backend {
+        /**
+         * Writes the messages, with the conversation and inbox updates they imply, all or none.
+         * Writing the same message twice must leave a single message behind, as the server
+         * holds it, and count it once towards the receiver's unread counters.
+         */
+        void commit(List<OutgoingMessage> messages, CommitCallback callback);
+    }
+
+    private static Outbox instance;
+
+    private final OutboxStore store;
+    private final Backend backend;
+    private final ScheduledExecutorService scheduler;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong failedFlushCount = new AtomicLong();
+    private volatile long lastFlushLatencyMillis;
+    // Only touched on the scheduler
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean isFlushing;
+    private int failedAttempts;
+    // Messages up to this outbox id were part of a rejected commit and go out one at a time
+    private long isolateThroughOutboxId = -1;
+
+    /**
+     * @param scheduler runs all queue work; must run tasks one at a time
+     */
+    public Outbox(OutboxStore store, Backend backend, ScheduledExecutorService scheduler) {
+        this.store = store;
+        this.backend = backend;
+        this.scheduler = scheduler;
+        scheduler.execute(() -> queueDepth.set(store.count()));
+    }
+
+    /**
+     * Creates the process wide outbox and flushes what a previous run left queued. Call once from
+     * the application, after Firestore is configured.
+     */
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new Outbox(new OutboxStore(ChatMatesDatabase.getInstance(context)),
+                    new FirestoreOutboxBackend(FirebaseFirestore.getInstance()),
+                    Executors.newSingleThreadScheduledExecutor());
+            instance.flush();
+        }
+    }
+
+    public static synchronized Outbox getInstance() {
+        return instance;
+    }
+
+    /**
+     * Queues the message durably and schedules a flush.
+     */
+    public void enqueue(OutgoingMessage outgoingMessage) {
+        scheduler.execute(() -> {
+            store.add(outgoingMessage);
+            queueDepth.incrementAndGet();
+            scheduleFlush(COALESCE_MILLIS);
+        });
+    }
+
+    /**
+     * Flushes right away, skipping a pending backoff. Use when the app has reason to believe the
+     * server is reachable again.
+     */
+    public void flush() {
+        scheduler.execute(() -> {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            scheduleFlush(0);
+        });
+    }
+
+    /**
+     * Queues parked messages with the given ids again and flushes. Messages that are merely
+     * waiting for a retry are flushed as well.
+     */
+    public void retry(List<String> messageIds) {
+        scheduler.execute(() -> queueDepth.addAndGet(store.unpark(messageIds)));
+        flush();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reads the messages of a conversation that are still waiting to be committed, including
+     * any enqueued before this call and any that are parked.
+     */
+    public void loadQueued(String conversationId, QueuedCallback callback) {
+        scheduler.execute(() -> callback.onQueued(store.loadForConversation(conversationId)));
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Time from the oldest message of the last successful commit being sent to the commit being
+     * confirmed, in milliseconds.
+     */
+    public long getLastFlushLatencyMillis() {
+        return lastFlushLatencyMillis;
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getFailedFlushCount() {
+        return failedFlushCount.get();
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        // A running commit schedules the next flush itself once it completes
+        if (isFlushing || scheduledFlush != null) {
+            return;
+        }
+        scheduledFlush = scheduler.schedule(this::flushNow, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushNow() {
+        scheduledFlush = null;
+        List<OutgoingMessage> loaded = store.loadOldest(MESSAGES_PER_COMMIT);
+        if (loaded.isEmpty()) {
+            return;
+        }
+        List<OutgoingMessage> messages = loaded.get(0).outboxId <= isolateThroughOutboxId
+                ? loaded.subList(0, 1) : loaded;
+        isFlushing = true;
+        backend.commit(messages, result -> scheduler.execute(() -> onCommitted(messages, result)));
+    }
+
+    private void onCommitted(List<OutgoingMessage> messages, int result) {
+        isFlushing = false;
+        if (result == RESULT_REJECTED) {
+            onRejected(messages);
+            return;
+        }
+        if (result != RESULT_COMMITTED) {
+            failedAttempts++;
+            failedFlushCount.incrementAndGet();
+            long backoffMillis = Math.min(INITIAL_BACKOFF_MILLIS << Math.min(failedAttempts - 1, 16), MAX_BACKOFF_MILLIS);
+            Log.w(TAG, "Commit of " + messages.size() + " messages failed, retrying in " + backoffMillis + " ms");
+            scheduleFlush(backoffMillis);
+            for (Listener listener : listeners) {
+                listener.onCommitFailed(idsOf(messages));
+            }
+            return;
+        }
+        failedAttempts = 0;
+        store.remove(messages);
+        lastFlushLatencyMillis = System.currentTimeMillis() - messages.get(0).dateObject.getTime();
+        flushCount.incrementAndGet();
+        Log.d(TAG, "Committed " + messages.size() + " messages in " + lastFlushLatencyMillis
+                + " ms, queued: " + queueDepth.addAndGet(-messages.size()));
+        if (queueDepth.get() > 0) {
+            scheduleFlush(0);
+        }
+        for (Listener listener : listeners) {
+            listener.onCommitted(idsOf(messages));
+        }
+    }
+
+    private void onRejected(List<OutgoingMessage> messages) {
+        failedFlushCount.incrementAndGet();
+        if (messages.size() > 1) {
+            // One of them is at fault; retrying them singly lets the others through
+            isolateThroughOutboxId = messages.get(messages.size() - 1).outboxId;
+            scheduleFlush(0);
+            return;
+        }
+        store.park(messages);
+        Log.w(TAG, "Parked message " + messages.get(0).messageId + " rejected by the server, queued: "
+                + queueDepth.decrementAndGet());
+        if (queueDepth.get() > 0) {
+            scheduleFlush(0);
+        }
+        for (Listener listener : listeners) {
+            listener.onCommitFailed(idsOf(messages));
+        }
+    }
+
+    private static List<String> idsOf(List<OutgoingMessage> messages) {
+        List<String> messageIds = new ArrayList<>();
+        for (OutgoingMessage outgoingMessage : messages) {
+            messageIds.add(outgoingMessage.messageId);
+        }
+        return messageIds;
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.example.chatmates.firebase;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.chatmates.utilities.Constants;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Copies a user's new name, email and avatar hash into the documents that denormalize them: every
+ * conversations document they take part in and the inbox entry each peer keeps for that
+ * conversation. Conversations are read a page at a time and each page is written as one batch,
+ * with a pause between batches so a user with many conversations does not flood the backend.
+ * Peers' lists then show the new profile straight from their inbox, with no lookup per row. The
+ * propagation outlives the screen that starts it, so listeners should not hold an activity.
+ */
+public class ProfilePropagation {
+
+    private static final String TAG = "ProfilePropagation";
+    // Each conversation costs two writes: the conversation and the peer's inbox entry
+    private static final int CONVERSATIONS_PER_BATCH = 200;
+    private static final long PAUSE_BETWEEN_BATCHES_MILLIS = 250;
+
+    public interface Listener {
+        /**
+         * Called on the main thread after every committed batch, with the conversations updated
+         * so far.
+         */
+        void onProgress(int updatedCount);
+
+        /**
+         * Called on the main thread once, with the error that stopped the propagation if any.
+         * Batches committed before an error stay applied.
+         */
+        void onFinished(int updatedCount, @Nullable Exception error);
+    }
+
+    private final FirebaseFirestore database;
+    private final String userId;
+    private final String name;
+    private final String email;
+    @Nullable
+    private final String imageHash;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int updatedCount;
+
+    public ProfilePropagation(FirebaseFirestore database, String userId, String name, String email, @Nullable String imageHash) {
+        this.database = database;
+        this.userId = userId;
+        this.name = name;
+        this.email = email;
+        this.imageHash = imageHash;
+    }
+
+    public void start(Listener listener) {
+        propagatePage(Constants.KEY_SENDER_ID, null, listener, () ->
+                propagatePage(Constants.KEY_RECEIVER_ID, null, listener, () ->
+                        listener.onFinished(updatedCount, null)));
+    }
+
+    /**
+     * Updates the conversations in which the user is stored under {@code field}, one page after
+     * the other.
+     */
+    private void propagatePage(String field, @Nullable DocumentSnapshot lastDocument, Listener listener, Runnable onFieldDone) {
+        Query query = database.collection(Constants.KEY_COLLECTION_CONVERSATIONS)
+                .whereEqualTo(field, userId)
+                .orderBy(FieldPath.documentId())
+                .limit(CONVERSATIONS_PER_BATCH);
+        if (lastDocument != null) {
+            query = query.startAfter(lastDocument);
+        }
+        query.get()
+                .addOnSuccessListener(snapshots -> {
+                    if (snapshots.isEmpty()) {
+                        onFieldDone.run();
+                        return;
+                    }
+                    boolean isSender = Constants.KEY_SENDER_ID.equals(field);
+                    List<DocumentSnapshot> conversations = snapshots.getDocuments();
+                    List<Task<DocumentSnapshot>> peerEntries = new ArrayList<>();
+                    for (DocumentSnapshot conversation : conversations) {
+                        String peerId = conversation.getString(isSender ? Constants.KEY_RECEIVER_ID : Constants.KEY_SENDER_ID);
+                        if (peerId != null) {
+                            peerEntries.add(Inbox.entry(database, peerId, conversation.getId()).get());
+                        }
+                    }
+                    Tasks.<DocumentSnapshot>whenAllSuccess(peerEntries)
+                            .addOnSuccessListener(entries -> commitPage(field, conversations, entries, listener, onFieldDone))
+                            .addOnFailureListener(exception -> fail(listener, exception));
+                })
+                .addOnFailureListener(exception -> fail(listener, exception));
+    }
+
+    /**
+     * Writes one page of conversations together with the peers' inbox entries that exist. A peer
+     * whose inbox was never backfilled or who deleted the chat keeps no live entry, and updating
+     * one would either fail the batch or bring the chat back.
+     */
+    private void commitPage(String field, List<DocumentSnapshot> conversations, List<DocumentSnapshot> entries,
+                            Listener listener, Runnable onFieldDone) {
+        boolean isSender = Constants.KEY_SENDER_ID.equals(field);
+        WriteBatch batch = database.batch();
+        for (DocumentSnapshot conversation : conversations) {
+            batch.update(conversation.getReference(), conversationFields(isSender));
+        }
+        for (DocumentSnapshot entry : entries) {
+            if (entry.exists() && !Inbox.isTombstone(entry)) {
+                Inbox.putPeerProfile(batch, entry.getReference(), name, email, imageHash);
+            }
+        }
+        DocumentSnapshot last = conversations.get(conversations.size() - 1);
+        boolean hasMore = conversations.size() == CONVERSATIONS_PER_BATCH;
+        batch.commit()
+                .addOnSuccessListener(unused -> {
+                    updatedCount += conversations.size();
+                    Log.d(TAG, "Updated " + updatedCount + " conversations");
+                    listener.onProgress(updatedCount);
+                    if (hasMore) {
+                        handler.postDelayed(() -> propagatePage(field, last, listener, onFieldDone),
+                                PAUSE_BETWEEN_BATCHES_MILLIS);
+                    } else {
+                        onFieldDone.run();
+                    }
+                })
+                .addOnFailureListener(exception -> fail(listener, exception));
+    }
+
+    private HashMap<String, Object> conversationFields(boolean isSender) {
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put(isSender ? Constants.KEY_SENDER_NAME : Constants.KEY_RECEIVER_NAME, name);
+        fields.put(isSender ? Constants.KEY_SENDER_EMAIL : Constants.KEY_RECEIVER_EMAIL, email);
+        if (imageHash != null) {
+            fields.put(isSender ? Constants.KEY_SENDER_IMAGE_HASH : Constants.KEY_RECEIVER_IMAGE_HASH, imageHash);
+            // The Base64 copy predates avatar hashes and would otherwise show the old picture
+            fields.put(isSender ? Constants.KEY_SENDER_IMAGE : Constants.KEY_RECEIVER_IMAGE, FieldValue.delete());
+        }
+        return fields;
+    }
+
+    private void fail(Listener listener, Exception exception) {
+        Log.w(TAG, "Stopped after " + updatedCount + " conversations", exception);
+        listener.onFinished(updatedCount, exception);
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.MainThread;
+
+import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.AppExecutors;
+import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.UserDirectoryCache;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Brings {@link UserDirectoryCache} up to date with userSummaries. Each sync asks only for
+ * summaries whose updatedAt is past the cache's watermark, ordered by updatedAt, so a refresh
+ * costs as much as the number of changed users rather than the size of the directory. A sync
+ * fetches a single page; a directory that is far behind catches up one page per sync instead of
+ * reading the whole collection back to back.
+ */
+public class UserDirectorySync {
+
+    public interface Listener {
+        /**
+         * Called on the main thread once the page of changed users was stored, if it held any.
+         */
+        void onUsersChanged(List<User> users);
+
+        /**
+         * Called on the main thread when the sync ends. {@code hasMore} tells whether changes
+         * past this page are left for the next sync.
+         */
+        void onSyncFinished(boolean isSuccessful, boolean hasMore);
+    }
+
+    private final FirebaseFirestore database;
+    private final UserDirectoryCache cache;
+    private boolean isSyncing;
+
+    public UserDirectorySync(FirebaseFirestore database, UserDirectoryCache cache) {
+        this.database = database;
+        this.cache = cache;
+    }
+
+    /**
+     * Starts a sync of the next page of changes unless one is already running.
+     */
+    @MainThread
+    public void sync(Listener listener) {
+        if (isSyncing) {
+            return;
+        }
+        isSyncing = true;
+        AppExecutors.background().execute(() -> {
+            long watermark = cache.getWatermark();
+            AppExecutors.runOnMainThread(() -> fetchPage(watermark, listener));
+        });
+    }
+
+    private void fetchPage(long watermark, Listener listener) {
+        // Server timestamps keep microseconds, so the millisecond watermark is rounded down and
+        // the newest user of the previous sync comes back once; merging it again is harmless
+        database.collection(Constants.KEY_COLLECTION_USER_SUMMARIES)
+                .whereGreaterThan(Constants.KEY_UPDATED_AT, new Timestamp(new Date(watermark)))
+                .orderBy(Constants.KEY_UPDATED_AT)
+                .limit(Constants.USER_SYNC_PAGE_SIZE)
+                .get()
+                .addOnSuccessListener(AppExecutors.background(), snapshot -> {
+                    List<User> users = new ArrayList<>();
+                    List<Long> updatedAtMillis = new ArrayList<>();
+                    long pageWatermark = watermark;
+                    for (DocumentSnapshot document : snapshot.getDocuments()) {
+                        Timestamp updatedAt = document.getTimestamp(Constants.KEY_UPDATED_AT);
+                        if (updatedAt == null) {
+                            continue;
+                        }
+                        users.add(UserSummaries.toUser(document));
+                        updatedAtMillis.add(updatedAt.toDate().getTime());
+                        pageWatermark = Math.max(pageWatermark, updatedAt.toDate().getTime());
+                    }
+                    cache.merge(users, updatedAtMillis, pageWatermark);
+                    boolean hasMore = snapshot.size() == Constants.USER_SYNC_PAGE_SIZE;
+                    AppExecutors.runOnMainThread(() -> {
+                        isSyncing = false;
+                        if (!users.isEmpty()) {
+                            listener.onUsersChanged(users);
+                        }
+                        listener.onSyncFinished(true, hasMore);
+                    });
+                })
+                .addOnFailureListener(exception -> {
+                    isSyncing = false;
+                    listener.onSyncFinished(false, false);
+                });
+    }
+
+}
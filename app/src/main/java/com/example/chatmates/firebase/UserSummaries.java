@@ -0,0 +1,129 @@
+package com.example.chatmates.firebase;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+
+import com.example.chatmates.models.User;
+import com.example.chatmates.utilities.Constants;
+import com.example.chatmates.utilities.NameNormalizer;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Slim projection of users/{id} kept in userSummaries/{id}. It holds only what list screens
+ * show (name, email, normalized name and avatar hash), so directory pages and conversation rows
+ * no longer download passwords, tokens, presence or inline images, and a token refresh or
+ * presence change does not touch it. Every write to those fields of a user document must also
+ * write the summary, in the same batch.
+ */
+public class UserSummaries {
+
+    // Firestore caps the values of an in query
+    private static final int MAX_IDS_PER_QUERY = 10;
+
+    private static UserSummaries instance;
+
+    private final FirebaseFirestore database;
+    private final Map<String, User> summaries = new ConcurrentHashMap<>();
+    private final Set<String> requestedIds = new LinkedHashSet<>();
+
+    private UserSummaries(FirebaseFirestore database) {
+        this.database = database;
+    }
+
+    public static synchronized UserSummaries getInstance() {
+        if (instance == null) {
+            instance = new UserSummaries(FirebaseFirestore.getInstance());
+        }
+        return instance;
+    }
+
+    public DocumentReference document(String userId) {
+        return database.collection(Constants.KEY_COLLECTION_USER_SUMMARIES).document(userId);
+    }
+
+    public static HashMap<String, Object> summaryOf(String name, String email, String imageHash) {
+        HashMap<String, Object> summary = new HashMap<>();
+        summary.put(Constants.KEY_NAME, name);
+        summary.put(Constants.KEY_NAME_LOWERCASE, NameNormalizer.normalize(name));
+        summary.put(Constants.KEY_EMAIL, email);
+        if (imageHash != null) {
+            summary.put(Constants.KEY_IMAGE_HASH, imageHash);
+        }
+        summary.put(Constants.KEY_UPDATED_AT, FieldValue.serverTimestamp());
+        return summary;
+    }
+
+    public static User toUser(DocumentSnapshot document) {
+        User user = new User();
+        user.id = document.getId();
+        user.name = document.getString(Constants.KEY_NAME);
+        user.email = document.getString(Constants.KEY_EMAIL);
+        user.imageHash = document.getString(Constants.KEY_IMAGE_HASH);
+        return user;
+    }
+
+    /**
+     * Returns the summary if it was fetched before; safe to call from any thread.
+     */
+    @Nullable
+    public User getCached(String userId) {
+        return summaries.get(userId);
+    }
+
+    public void cache(User summary) {
+        summaries.put(summary.id, summary);
+    }
+
+    /**
+     * Forgets every cached summary, so the next fetch picks up profile edits.
+     */
+    public void clear() {
+        summaries.clear();
+    }
+
+    /**
+     * Fetches the summaries that are neither cached nor already requested, batching ids into
+     * in queries, and runs the callback once per batch that delivered anything.
+     */
+    @MainThread
+    public void fetchMissing(Collection<String> userIds, Runnable onFetched) {
+        List<String> missingIds = new ArrayList<>();
+        for (String userId : userIds) {
+            if (userId != null && !summaries.containsKey(userId) && requestedIds.add(userId)) {
+                missingIds.add(userId);
+            }
+        }
+        for (int start = 0; start < missingIds.size(); start += MAX_IDS_PER_QUERY) {
+            List<String> chunk = missingIds.subList(start, Math.min(start + MAX_IDS_PER_QUERY, missingIds.size()));
+            List<String> batch = new ArrayList<>(chunk);
+            database.collection(Constants.KEY_COLLECTION_USER_SUMMARIES)
+                    .whereIn(FieldPath.documentId(), batch)
+                    .get()
+                    .addOnCompleteListener(task -> {
+                        // Ids that failed or have no summary yet may be asked for again later
+                        requestedIds.removeAll(batch);
+                        if (!task.isSuccessful() || task.getResult() == null || task.getResult().isEmpty()) {
+                            return;
+                        }
+                        for (DocumentSnapshot document : task.getResult()) {
+                            cache(toUser(document));
+                        }
+                        onFetched.run();
+                    });
+        }
+    }
+
+}
@@ -4,9 +4,15 @@ import java.util.Date;
 
 public class ChatMessage {
 
+    public static final int STATE_SENT = 0;
+    public static final int STATE_PENDING = 1;
+    public static final int STATE_FAILED = 2;
+
     public String senderId, receiverId, message, dateTime;
     public Date dateObject;
-    public String conversionId, conversionName, conversionImage, conversionEmail, conversationId;
+    public String conversionId, conversionName, conversionImage, conversionImageHash, conversionEmail, conversationId;
     public String sentMessageDocumentId;
+    public int unreadCount;
+    public int deliveryState = STATE_SENT;
 
 }
@@ -0,0 +1,16 @@
+package com.example.chatmates.models;
+
+import java.util.Date;
+
+public class OutgoingMessage {
+
+    public long outboxId;
+    public String conversationId, messageId, senderId, receiverId, message;
+    public Date dateObject;
+    public boolean isNewConversation;
+    // Set once the server rejected the message for good; it waits for an explicit retry
+    public boolean isParked;
+    public String senderName, senderEmail, senderImageHash;
+    public String receiverName, receiverEmail, receiverImageHash;
+
+}
@@ -4,6 +4,6 @@ import java.io.Serializable;
 
 public class User implements Serializable {
 
-    public String name, image, email, token, id;
+    public String name, image, imageHash, email, token, id;
 
 }
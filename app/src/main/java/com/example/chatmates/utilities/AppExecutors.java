@@ -0,0 +1,37 @@
+package com.example.chatmates.utilities;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+public class AppExecutors {
+
+    // A single thread keeps snapshot batches in the order Firestore delivered them
+    private static final Executor SNAPSHOT_PARSER = Executors.newSingleThreadExecutor();
+    private static final Executor BACKGROUND = Executors.newFixedThreadPool(2);
+    private static final Handler MAIN_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+
+    private AppExecutors() {
+    }
+
+    /**
+     * Executor for turning Firestore snapshots into display models off the main thread.
+     */
+    public static Executor snapshotParser() {
+        return SNAPSHOT_PARSER;
+    }
+
+    /**
+     * Executor for short disk and CPU bound jobs that must stay off the main thread.
+     */
+    public static Executor background() {
+        return BACKGROUND;
+    }
+
+    public static void runOnMainThread(Runnable runnable) {
+        MAIN_THREAD_HANDLER.post(runnable);
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.example.chatmates.utilities;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * App-wide memory cache of decoded avatars. Entries are keyed by the avatar's content hash, so a
+ * changed avatar never serves the stale bitmap and users sharing an image share the entry. The
+ * cache is bounded by bitmap bytes rather than entry count.
+ *
+ * <p>Views that show a bitmap retain it, and an evicted bitmap goes back to {@link BitmapPool}
+ * only once no view retains it any more.
+ */
+public class AvatarCache {
+
+    private static AvatarCache instance;
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final Map<Bitmap, Integer> displayCounts = new IdentityHashMap<>();
+    private final Map<Bitmap, Boolean> cachedBitmaps = new IdentityHashMap<>();
+
+    private AvatarCache() {
+        // An eighth of the heap, in kilobytes
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        memoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount() / 1024;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                onEntryRemoved(oldValue);
+            }
+        };
+    }
+
+    public static synchronized AvatarCache getInstance() {
+        if (instance == null) {
+            instance = new AvatarCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Key for an avatar that still arrives inline as Base64 in a legacy document and has no
+     * content hash yet.
+     */
+    public static String inlineKeyOf(String encodedImage) {
+        // String caches its hash code, so repeated binds of the same avatar do not rehash it
+        return "inline:" + Integer.toHexString(encodedImage.hashCode()) + ":" + encodedImage.length();
+    }
+
+    /**
+     * Returns the avatar only if it is already decoded; never decodes. A returned bitmap is
+     * retained and must be handed back through {@link #release(Bitmap)}.
+     */
+    @Nullable
+    public synchronized Bitmap getCachedAvatar(String key) {
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes the Base64 avatar and caches it under the given key. Decoding happens on the
+     * calling thread, so views should go through {@link AvatarLoader} instead. A returned
+     * bitmap is retained, as with {@link #getCachedAvatar(String)}.
+     */
+    @Nullable
+    public Bitmap decodeAvatar(String key, String encodedImage) {
+        byte[] bytes = Base64.decode(encodedImage, Base64.DEFAULT);
+        Bitmap bitmap = BitmapPool.getInstance().decodeByteArray(bytes, 0, bytes.length);
+        if (bitmap != null) {
+            putAvatar(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Caches an already decoded avatar and retains it for the caller.
+     */
+    public synchronized void putAvatar(String key, Bitmap bitmap) {
+        retain(bitmap);
+        cachedBitmaps.put(bitmap, Boolean.TRUE);
+        memoryCache.put(key, bitmap);
+    }
+
+    public synchronized void retain(Bitmap bitmap) {
+        Integer count = displayCounts.get(bitmap);
+        displayCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = displayCounts.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            displayCounts.put(bitmap, count - 1);
+            return;
+        }
+        displayCounts.remove(bitmap);
+        if (!cachedBitmaps.containsKey(bitmap)) {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    private synchronized void onEntryRemoved(Bitmap bitmap) {
+        cachedBitmaps.remove(bitmap);
+        if (!displayCounts.containsKey(bitmap)) {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    public int getHitCount() {
+        return memoryCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return memoryCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return memoryCache.evictionCount();
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.example.chatmates.utilities;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.example.chatmates.firebase.AvatarStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Disk tier under {@link AvatarCache}. Decoded avatars are stored as size-normalized JPEG
+ * thumbnails in a bounded cache directory, so after a restart they come back without touching
+ * Base64 or the network. Each file starts with the avatar key it was written for and is discarded
+ * if that key does not match; the oldest files are evicted once the directory is over budget.
+ */
+public class AvatarDiskCache {
+
+    private static final String TAG = "AvatarDiskCache";
+    private static final String DIRECTORY_NAME = "avatars";
+    private static final int FILE_MAGIC = 0x41564154; // "AVAT"
+    private static final long MAX_CACHE_BYTES = 10 * 1024 * 1024;
+    private static final int THUMBNAIL_SIZE = 150;
+    private static final int THUMBNAIL_QUALITY = 90;
+
+    private static AvatarDiskCache instance;
+
+    private final File directory;
+    private long cachedBytes = -1;
+
+    private AvatarDiskCache(File directory) {
+        this.directory = directory;
+    }
+
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new AvatarDiskCache(new File(context.getCacheDir(), DIRECTORY_NAME));
+        }
+    }
+
+    @Nullable
+    public static AvatarDiskCache getInstance() {
+        return instance;
+    }
+
+    @WorkerThread
+    @Nullable
+    public synchronized Bitmap get(String key) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (inputStream.readInt() != FILE_MAGIC || !key.equals(inputStream.readUTF())) {
+                throw new IOException("Stale or foreign avatar file " + file.getName());
+            }
+            ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                imageBytes.write(buffer, 0, read);
+            }
+            Bitmap bitmap = BitmapPool.getInstance().decodeByteArray(imageBytes.toByteArray(), 0, imageBytes.size());
+            if (bitmap == null) {
+                throw new IOException("Corrupt avatar file " + file.getName());
+            }
+            // Reads refresh the timestamp that eviction orders by
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding avatar " + key, e);
+            delete(file);
+            return null;
+        }
+    }
+
+    @WorkerThread
+    public synchronized void put(String key, Bitmap bitmap) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File file = fileFor(key);
+        if (file.exists()) {
+            return;
+        }
+        Bitmap thumbnail = normalize(bitmap);
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            outputStream.writeInt(FILE_MAGIC);
+            outputStream.writeUTF(key);
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, outputStream);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store avatar " + key, e);
+            delete(temporaryFile);
+            return;
+        } finally {
+            if (thumbnail != bitmap) {
+                thumbnail.recycle();
+            }
+        }
+        // Renaming keeps a crash mid-write from leaving a truncated file under the real name
+        if (temporaryFile.renameTo(file)) {
+            cachedBytes = getCachedBytes() + file.length();
+            trimToSize();
+        } else {
+            delete(temporaryFile);
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        if (cachedBytes < 0) {
+            cachedBytes = 0;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    cachedBytes += file.length();
+                }
+            }
+        }
+        return cachedBytes;
+    }
+
+    private void trimToSize() {
+        if (cachedBytes <= MAX_CACHE_BYTES) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (first, second) -> Long.compare(first.lastModified(), second.lastModified()));
+        for (File file : files) {
+            if (cachedBytes <= MAX_CACHE_BYTES) {
+                break;
+            }
+            delete(file);
+        }
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete() && cachedBytes >= 0) {
+            cachedBytes -= length;
+        }
+    }
+
+    private File fileFor(String key) {
+        // Keys may contain characters that are not valid in file names, so name files by hash
+        return new File(directory, AvatarStore.hashOf(key));
+    }
+
+    private static Bitmap normalize(Bitmap bitmap) {
+        int largestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largestSide <= THUMBNAIL_SIZE) {
+            return bitmap;
+        }
+        float scale = (float) THUMBNAIL_SIZE / largestSide;
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)),
+                true);
+    }
+
+}
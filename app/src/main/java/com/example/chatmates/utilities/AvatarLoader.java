@@ -0,0 +1,172 @@
+package com.example.chatmates.utilities;
+
+import android.graphics.Bitmap;
+import android.view.View;
+import android.widget.ImageView;
+
+import com.example.chatmates.R;
+import com.example.chatmates.firebase.AvatarStore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Binds avatars to image views without decoding on the main thread. Warm avatars are set right
+ * away from {@link AvatarCache}; cold ones show a placeholder while a small background pool
+ * reads them from {@link AvatarDiskCache}, or fetches them from {@link AvatarStore} and decodes
+ * them. Rebinding or recycling a view cancels
+ * its previous request, so a stale decode never lands on a view that already shows someone else.
+ * It also releases the bitmap the view showed, which lets an evicted avatar be reused by
+ * {@link BitmapPool} for the next decode. A view detached from its window, like every view of a
+ * finished activity, releases its avatar the same way and loads it again if it is reattached.
+ */
+public class AvatarLoader {
+
+    private static final int DECODE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final ExecutorService DECODE_POOL = Executors.newFixedThreadPool(DECODE_THREADS);
+
+    private static class AvatarRequest {
+        Future<?> future;
+    }
+
+    /**
+     * What a view was last asked to show, so the avatar released on detach can be loaded again
+     * when the view comes back, as recycler views do with rows scrolled just off screen.
+     */
+    private static class AvatarBinding implements View.OnAttachStateChangeListener {
+        String imageHash;
+        String legacyEncodedImage;
+        boolean isReleased;
+
+        @Override
+        public void onViewAttachedToWindow(View view) {
+            if (isReleased) {
+                isReleased = false;
+                load((ImageView) view, imageHash, legacyEncodedImage);
+            }
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View view) {
+            // A view whose avatar was cancelled by its owner shows something else; leave it be
+            isReleased = release((ImageView) view);
+        }
+    }
+
+    private AvatarLoader() {
+    }
+
+    /**
+     * Loads the avatar with the given content hash. Documents written before avatars moved to
+     * the avatar store have no hash and carry the Base64 image inline instead.
+     */
+    public static void load(ImageView imageView, String imageHash, String legacyEncodedImage) {
+        cancel(imageView);
+        bind(imageView, imageHash, legacyEncodedImage);
+        String key;
+        if (imageHash != null && !imageHash.isEmpty()) {
+            key = imageHash;
+        } else if (legacyEncodedImage != null && !legacyEncodedImage.isEmpty()) {
+            key = AvatarCache.inlineKeyOf(legacyEncodedImage);
+        } else {
+            imageView.setImageDrawable(null);
+            return;
+        }
+        Bitmap cached = AvatarCache.getInstance().getCachedAvatar(key);
+        if (cached != null) {
+            show(imageView, cached);
+            return;
+        }
+        // The view's background doubles as the placeholder until the decode lands
+        imageView.setImageDrawable(null);
+        AvatarRequest request = new AvatarRequest();
+        imageView.setTag(R.id.avatar_request, request);
+        request.future = DECODE_POOL.submit(() -> {
+            Bitmap bitmap = loadBlocking(key, imageHash, legacyEncodedImage);
+            AppExecutors.runOnMainThread(() -> {
+                if (imageView.getTag(R.id.avatar_request) == request) {
+                    imageView.setTag(R.id.avatar_request, null);
+                    show(imageView, bitmap);
+                } else if (bitmap != null) {
+                    AvatarCache.getInstance().release(bitmap);
+                }
+            });
+        });
+    }
+
+    private static void bind(ImageView imageView, String imageHash, String legacyEncodedImage) {
+        AvatarBinding binding = (AvatarBinding) imageView.getTag(R.id.avatar_binding);
+        if (binding == null) {
+            binding = new AvatarBinding();
+            imageView.setTag(R.id.avatar_binding, binding);
+            imageView.addOnAttachStateChangeListener(binding);
+        }
+        binding.imageHash = imageHash;
+        binding.legacyEncodedImage = legacyEncodedImage;
+        binding.isReleased = false;
+    }
+
+    private static Bitmap loadBlocking(String key, String imageHash, String legacyEncodedImage) {
+        AvatarDiskCache diskCache = AvatarDiskCache.getInstance();
+        // Bitmaps leave here retained, so eviction cannot pool them before they reach the view
+        Bitmap bitmap = AvatarCache.getInstance().getCachedAvatar(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        bitmap = diskCache != null ? diskCache.get(key) : null;
+        if (bitmap != null) {
+            AvatarCache.getInstance().putAvatar(key, bitmap);
+            return bitmap;
+        }
+        String encodedImage = key.equals(imageHash)
+                ? AvatarStore.getInstance().fetchBlocking(imageHash)
+                : legacyEncodedImage;
+        if (encodedImage == null) {
+            return null;
+        }
+        bitmap = AvatarCache.getInstance().decodeAvatar(key, encodedImage);
+        if (bitmap != null && diskCache != null) {
+            diskCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private static void show(ImageView imageView, Bitmap bitmap) {
+        imageView.setTag(R.id.avatar_bitmap, bitmap);
+        imageView.setImageBitmap(bitmap);
+    }
+
+    /**
+     * Drops the pending request of the view, if any, and releases the avatar it shows. Call it
+     * when a view holder is recycled.
+     */
+    public static void cancel(ImageView imageView) {
+        release(imageView);
+    }
+
+    /**
+     * Returns whether the view had an avatar or a pending request to drop.
+     */
+    private static boolean release(ImageView imageView) {
+        boolean hadAvatar = false;
+        Object tag = imageView.getTag(R.id.avatar_request);
+        if (tag instanceof AvatarRequest) {
+            Future<?> future = ((AvatarRequest) tag).future;
+            if (future != null) {
+                future.cancel(false);
+            }
+            hadAvatar = true;
+        }
+        imageView.setTag(R.id.avatar_request, null);
+        Object shown = imageView.getTag(R.id.avatar_bitmap);
+        if (shown instanceof Bitmap) {
+            imageView.setTag(R.id.avatar_bitmap, null);
+            imageView.setImageDrawable(null);
+            AvatarCache.getInstance().release((Bitmap) shown);
+            hadAvatar = true;
+        }
+        return hadAvatar;
+    }
+
+}
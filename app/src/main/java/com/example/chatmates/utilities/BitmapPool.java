@@ -0,0 +1,135 @@
+package com.example.chatmates.utilities;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Size-bucketed pool of mutable bitmaps that decodes can draw on through
+ * {@link BitmapFactory.Options#inBitmap}. Bitmaps are bucketed by allocation size, and a request
+ * is only served by a bitmap at most twice as large as it needs, so the pool never pins a big
+ * bitmap for a small avatar. Callers must only hand in bitmaps that nothing displays any more.
+ */
+public class BitmapPool {
+
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static BitmapPool instance;
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private final long maxBytes;
+    private long retainedBytes;
+    private int requestCount;
+    private int hitCount;
+
+    private BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            // A sixteenth of the heap, half of what the avatar cache itself may hold
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return instance;
+    }
+
+    /**
+     * Decodes the image, reusing a pooled bitmap when one of a suitable size is available.
+     */
+    @Nullable
+    public Bitmap decodeByteArray(byte[] bytes, int offset, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        Bitmap reusable = get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = reusable;
+        try {
+            return BitmapFactory.decodeByteArray(bytes, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder rejected the candidate; keep it for a later request and decode fresh
+            put(reusable);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, offset, length, options);
+        }
+    }
+
+    @Nullable
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        requestCount++;
+        int neededBytes = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry(neededBytes);
+        if (bucket == null || bucket.getKey() > neededBytes * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        Bitmap bitmap = bucket.getValue().poll();
+        if (bucket.getValue().isEmpty()) {
+            buckets.remove(bucket.getKey());
+        }
+        retainedBytes -= bitmap.getAllocationByteCount();
+        hitCount++;
+        return bitmap;
+    }
+
+    public synchronized void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.push(bitmap);
+        retainedBytes += size;
+        trimToSize();
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized float getHitRate() {
+        return requestCount == 0 ? 0f : (float) hitCount / requestCount;
+    }
+
+    private void trimToSize() {
+        // Dropping the largest bitmaps first frees the most memory for the fewest lost reuses
+        while (retainedBytes > maxBytes && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            Bitmap bitmap = largest.getValue().pollLast();
+            if (largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            retainedBytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Local SQLite database for data the app keeps across launches. Besides the cached tables it
+ * records sync watermarks, the position up to which a table is known to match the server.
+ */
+public class ChatMatesDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "chatmates.db";
+    private static final int DATABASE_VERSION = 4;
+
+    public static final String TABLE_USERS = "users";
+    public static final String TABLE_SYNC_STATE = "sync_state";
+    public static final String TABLE_INBOX = "inbox";
+    public static final String TABLE_MESSAGES = "messages";
+    public static final String TABLE_OUTBOX = "outbox";
+    public static final String TABLE_PURGES = "purges";
+
+    public static final String COLUMN_ID = "id";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_NAME_LOWERCASE = "name_lowercase";
+    public static final String COLUMN_EMAIL = "email";
+    public static final String COLUMN_IMAGE_HASH = "image_hash";
+    public static final String COLUMN_UPDATED_AT = "updated_at";
+    public static final String COLUMN_WATERMARK = "watermark";
+    public static final String COLUMN_OWNER_ID = "owner_id";
+    public static final String COLUMN_CONVERSATION_ID = "conversation_id";
+    public static final String COLUMN_PEER_ID = "peer_id";
+    public static final String COLUMN_LAST_MESSAGE = "last_message";
+    public static final String COLUMN_TIMESTAMP = "timestamp";
+    public static final String COLUMN_UNREAD_COUNT = "unread_count";
+    public static final String COLUMN_MESSAGE_ID = "message_id";
+    public static final String COLUMN_SENDER_ID = "sender_id";
+    public static final String COLUMN_RECEIVER_ID = "receiver_id";
+    public static final String COLUMN_MESSAGE = "message";
+    public static final String COLUMN_SENDER_NAME = "sender_name";
+    public static final String COLUMN_SENDER_EMAIL = "sender_email";
+    public static final String COLUMN_SENDER_IMAGE_HASH = "sender_image_hash";
+    public static final String COLUMN_RECEIVER_NAME = "receiver_name";
+    public static final String COLUMN_RECEIVER_EMAIL = "receiver_email";
+    public static final String COLUMN_RECEIVER_IMAGE_HASH = "receiver_image_hash";
+    public static final String COLUMN_IS_NEW_CONVERSATION = "is_new_conversation";
+    public static final String COLUMN_IS_PARKED = "is_parked";
+    public static final String COLUMN_CUTOFF = "cutoff";
+    public static final String COLUMN_DELETED_COUNT = "deleted_count";
+
+    private static ChatMatesDatabase instance;
+
+    /**
+     * @param name file name of the database, or null for an in-memory database
+     */
+    public ChatMatesDatabase(Context context, @Nullable String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    public static synchronized ChatMatesDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatMatesDatabase(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_USERS + " ("
+                + COLUMN_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_NAME + " TEXT, "
+                + COLUMN_NAME_LOWERCASE + " TEXT, "
+                + COLUMN_EMAIL + " TEXT, "
+                + COLUMN_IMAGE_HASH + " TEXT, "
+                + COLUMN_UPDATED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX users_by_name ON " + TABLE_USERS + " (" + COLUMN_NAME_LOWERCASE + ")");
+        db.execSQL("CREATE TABLE " + TABLE_SYNC_STATE + " ("
+                + COLUMN_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_WATERMARK + " INTEGER NOT NULL)");
+        createInboxTable(db);
+        createMessagesTable(db);
+        createOutboxTable(db);
+        createPurgesTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createInboxTable(db);
+        } else if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE_INBOX + " ADD COLUMN " + COLUMN_UNREAD_COUNT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 4) {
+            createMessagesTable(db);
+            createOutboxTable(db);
+            createPurgesTable(db);
+        }
+    }
+
+    private static void createInboxTable(SQLiteDatabase db) {
+        // Keyed by owner as well, since several accounts may sign in on the same device
+        db.execSQL("CREATE TABLE " + TABLE_INBOX + " ("
+                + COLUMN_OWNER_ID + " TEXT NOT NULL, "
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_PEER_ID + " TEXT, "
+                + COLUMN_NAME + " TEXT, "
+                + COLUMN_EMAIL + " TEXT, "
+                + COLUMN_IMAGE_HASH + " TEXT, "
+                + COLUMN_LAST_MESSAGE + " TEXT, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_UNREAD_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + COLUMN_OWNER_ID + ", " + COLUMN_CONVERSATION_ID + "))");
+    }
+
+    private static void createMessagesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_ID + " TEXT, "
+                + COLUMN_RECEIVER_ID + " TEXT, "
+                + COLUMN_MESSAGE + " TEXT, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_CONVERSATION_ID + ", " + COLUMN_MESSAGE_ID + "))");
+        // Pages of a chat are read newest first by timestamp
+        db.execSQL("CREATE INDEX messages_by_timestamp ON " + TABLE_MESSAGES
+                + " (" + COLUMN_CONVERSATION_ID + ", " + COLUMN_TIMESTAMP + ")");
+    }
+
+    private static void createOutboxTable(SQLiteDatabase db) {
+        // The row id keeps sends in the order they were made; the sender and receiver details are
+        // copied in so a flush after a restart can still write the conversation and inboxes
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE_ID + " TEXT NOT NULL, "
+                + COLUMN_SENDER_ID + " TEXT NOT NULL, "
+                + COLUMN_RECEIVER_ID + " TEXT NOT NULL, "
+                + COLUMN_MESSAGE + " TEXT, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_IS_NEW_CONVERSATION + " INTEGER NOT NULL, "
+                + COLUMN_SENDER_NAME + " TEXT, "
+                + COLUMN_SENDER_EMAIL + " TEXT, "
+                + COLUMN_SENDER_IMAGE_HASH + " TEXT, "
+                + COLUMN_RECEIVER_NAME + " TEXT, "
+                + COLUMN_RECEIVER_EMAIL + " TEXT, "
+                + COLUMN_RECEIVER_IMAGE_HASH + " TEXT, "
+                + COLUMN_IS_PARKED + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    private static void createPurgesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PURGES + " ("
+                + COLUMN_CONVERSATION_ID + " TEXT PRIMARY KEY, "
+                + COLUMN_OWNER_ID + " TEXT, "
+                + COLUMN_CUTOFF + " INTEGER NOT NULL, "
+                + COLUMN_DELETED_COUNT + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    /**
+     * Returns the stored watermark of the named sync, or 0 if it never completed a page.
+     */
+    public long getWatermark(String syncName) {
+        return getWatermark(syncName, 0);
+    }
+
+    public long getWatermark(String syncName, long defaultValue) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SYNC_STATE, new String[]{COLUMN_WATERMARK},
+                COLUMN_ID + " = ?", new String[]{syncName}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : defaultValue;
+        }
+    }
+
+    public void putWatermark(SQLiteDatabase db, String syncName, long watermark) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, syncName);
+        values.put(COLUMN_WATERMARK, watermark);
+        db.insertWithOnConflict(TABLE_SYNC_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+}
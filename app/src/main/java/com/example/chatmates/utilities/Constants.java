@@ -3,30 +3,57 @@ package com.example.chatmates.utilities;
 public class Constants {
     
     public static final String KEY_COLLECTION_USERS = "users";
+    public static final String KEY_COLLECTION_USER_SUMMARIES = "userSummaries";
     public static final String KEY_NAME = "name";
+    public static final String KEY_NAME_LOWERCASE = "nameLowercase";
     public static final String KEY_EMAIL = "email";
     public static final String KEY_PASSWORD = "password";
     public static final String KEY_PREFERENCE_NAME = "chatmatesPreferences";
     public static final String KEY_IS_SIGNED_IN = "isSignedIn";
     public static final String KEY_USER_ID = "userId";
     public static final String KEY_IMAGE = "image";
+    public static final String KEY_IMAGE_HASH = "imageHash";
+    public static final String KEY_COLLECTION_AVATARS = "avatars";
     public static final String KEY_FCM_TOKEN = "fcmToken";
     public static final String KEY_USER = "user";
     public static final String KEY_COLLECTION_CHAT = "chats";
+    public static final String KEY_COLLECTION_MESSAGES = "messages";
+    public static final String KEY_IS_CHATS_MIGRATED = "isChatsMigrated";
+    public static final String KEY_IS_USER_SUMMARY_PUBLISHED = "isUserSummaryPublished";
     public static final String KEY_SENDER_ID = "senderId";
     public static final String KEY_RECEIVER_ID = "receiverId";
     public static final String KEY_MESSAGE = "message";
     public static final String KEY_TIMESTAMP = "timestamp";
+    public static final String KEY_UPDATED_AT = "updatedAt";
     public static final String KEY_COLLECTION_CONVERSATIONS = "conversations";
+    public static final String KEY_COLLECTION_INBOX = "inbox";
+    public static final String KEY_IS_INBOX_BACKFILLED = "isInboxBackfilled";
+    public static final String KEY_IS_CONVERSATION_AVATARS_MIGRATED = "isConversationAvatarsMigrated";
+    public static final String KEY_PEER_ID = "peerId";
+    public static final String KEY_PEER_NAME = "peerName";
+    public static final String KEY_PEER_EMAIL = "peerEmail";
+    public static final String KEY_PEER_IMAGE_HASH = "peerImageHash";
+    public static final String KEY_VERSION = "version";
+    public static final String KEY_DELETED = "deleted";
+    public static final String KEY_DELETED_AT = "deletedAt";
+    public static final String KEY_UNREAD_COUNTS = "unreadCounts";
+    public static final String KEY_UNREAD_COUNT = "unreadCount";
     public static final String KEY_SENDER_NAME = "senderName";
     public static final String KEY_RECEIVER_NAME = "receiverName";
     public static final String KEY_SENDER_IMAGE = "senderImage";
     public static final String KEY_RECEIVER_IMAGE = "receiverImage";
+    public static final String KEY_SENDER_IMAGE_HASH = "senderImageHash";
+    public static final String KEY_RECEIVER_IMAGE_HASH = "receiverImageHash";
     public static final String KEY_SENDER_EMAIL = "senderEmail";
     public static final String KEY_RECEIVER_EMAIL = "receiverEmail";
     public static final String KEY_LAST_MESSAGE = "lastMessage";
     public static final String KEY_AVAILABILITY = "availability";
     public static final String REMOTE_MSG_AUTHORIZATION = "Authorization";
     public static final String REMOTE_MSG_CONTENT_TYPE = "Content-Type";
+    public static final int MESSAGE_PAGE_SIZE = 30;
+    public static final int MESSAGE_PREFETCH_DISTANCE = 5;
+    public static final int USER_PAGE_SIZE = 25;
+    public static final int USER_PREFETCH_DISTANCE = 5;
+    public static final int USER_SYNC_PAGE_SIZE = 200;
     
 }
@@ -0,0 +1,19 @@
+package com.example.chatmates.utilities;
+
+public class ConversationKeys {
+
+    private ConversationKeys() {
+    }
+
+    /**
+     * Key shared by both participants of a chat, independent of who sent first. It is the id
+     * of the pair's conversations document, and its messages live under conversations/{key}/messages.
+     */
+    public static String of(String firstUserId, String secondUserId) {
+        if (firstUserId.compareTo(secondUserId) <= 0) {
+            return firstUserId + "_" + secondUserId;
+        }
+        return secondUserId + "_" + firstUserId;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.example.chatmates.utilities;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.example.chatmates.models.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The recent conversations list, kept newest first and indexed by conversation id. A new message
+ * moves its conversation with a single remove and binary-search insert, and every change is
+ * reported to the {@link ListUpdateCallback} as an exact insert, change, move or removal.
+ */
+public class ConversationStore {
+
+    // Ties on the timestamp are broken by conversation id so every entry has exactly one position
+    private static final Comparator<ChatMessage> ORDER = (first, second) -> {
+        int byDate = second.dateObject.compareTo(first.dateObject);
+        return byDate != 0 ? byDate : first.conversationId.compareTo(second.conversationId);
+    };
+
+    private final List<ChatMessage> conversations = new ArrayList<>();
+    private final Map<String, ChatMessage> conversationsById = new HashMap<>();
+    private final Map<String, Long> stableIds = new HashMap<>();
+    private long nextStableId = 0;
+    private ListUpdateCallback updateCallback;
+
+    public void setUpdateCallback(ListUpdateCallback updateCallback) {
+        this.updateCallback = updateCallback;
+    }
+
+    public int size() {
+        return conversations.size();
+    }
+
+    public ChatMessage get(int position) {
+        return conversations.get(position);
+    }
+
+    @Nullable
+    public ChatMessage findById(String conversationId) {
+        return conversationsById.get(conversationId);
+    }
+
+    /**
+     * Stable id of a stored conversation, which survives moves and replacements.
+     */
+    public long getStableId(String conversationId) {
+        Long stableId = stableIds.get(conversationId);
+        return stableId != null ? stableId : -1;
+    }
+
+    /**
+     * Returns a copy of the conversations in display order.
+     */
+    public List<ChatMessage> toList() {
+        return new ArrayList<>(conversations);
+    }
+
+    /**
+     * Inserts the conversation, or replaces the stored one with the same id and moves it if its
+     * timestamp changed. Returns the position the conversation ends up at.
+     */
+    public int upsert(ChatMessage conversation) {
+        ChatMessage existing = conversationsById.get(conversation.conversationId);
+        conversationsById.put(conversation.conversationId, conversation);
+        if (existing == null) {
+            stableIds.put(conversation.conversationId, nextStableId++);
+            int position = insertionPoint(conversation);
+            conversations.add(position, conversation);
+            if (updateCallback != null) {
+                updateCallback.onInserted(position, 1);
+            }
+            return position;
+        }
+        int oldPosition = Collections.binarySearch(conversations, existing, ORDER);
+        if (ORDER.compare(existing, conversation) == 0) {
+            conversations.set(oldPosition, conversation);
+            if (updateCallback != null) {
+                updateCallback.onChanged(oldPosition, 1, null);
+            }
+            return oldPosition;
+        }
+        conversations.remove(oldPosition);
+        int newPosition = insertionPoint(conversation);
+        conversations.add(newPosition, conversation);
+        if (updateCallback != null) {
+            if (oldPosition != newPosition) {
+                updateCallback.onMoved(oldPosition, newPosition);
+            }
+            updateCallback.onChanged(newPosition, 1, null);
+        }
+        return newPosition;
+    }
+
+    /**
+     * Removes the conversation with the given id. Returns its former position, or -1 if it was
+     * not stored.
+     */
+    public int remove(String conversationId) {
+        ChatMessage existing = conversationsById.remove(conversationId);
+        if (existing == null) {
+            return -1;
+        }
+        stableIds.remove(conversationId);
+        int position = Collections.binarySearch(conversations, existing, ORDER);
+        conversations.remove(position);
+        if (updateCallback != null) {
+            updateCallback.onRemoved(position, 1);
+        }
+        return position;
+    }
+
+    public void clear() {
+        int count = conversations.size();
+        conversations.clear();
+        conversationsById.clear();
+        stableIds.clear();
+        if (updateCallback != null && count > 0) {
+            updateCallback.onRemoved(0, count);
+        }
+    }
+
+    private int insertionPoint(ChatMessage conversation) {
+        int index = Collections.binarySearch(conversations, conversation, ORDER);
+        return index >= 0 ? index : -index - 1;
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns a picked gallery image into the Base64 avatar stored for a user. The image is probed for
+ * its bounds first and decoded with inSampleSize, so a 50 MP photo never has to fit in memory at
+ * full resolution. EXIF orientation is applied, and the JPEG quality is lowered until the avatar
+ * fits the byte budget. Everything runs on a background thread.
+ */
+public class ImageIngest {
+
+    private static final String TAG = "ImageIngest";
+    private static final int AVATAR_WIDTH = 150;
+    private static final int TARGET_ENCODED_BYTES = 16 * 1024;
+    private static final int START_QUALITY = 50;
+    private static final int MIN_QUALITY = 20;
+    private static final int QUALITY_STEP = 10;
+
+    public interface Callback {
+        void onIngested(Result result);
+
+        void onFailed(Exception exception);
+    }
+
+    public static class Result {
+        public final Bitmap preview;
+        public final String encodedImage;
+        public final long probeMillis, decodeMillis, encodeMillis;
+        // The sampled decode and the scaled preview are alive at the same time
+        public final int peakBitmapBytes;
+        public final int encodedBytes;
+
+        Result(Bitmap preview, String encodedImage, long probeMillis, long decodeMillis, long encodeMillis,
+               int peakBitmapBytes, int encodedBytes) {
+            this.preview = preview;
+            this.encodedImage = encodedImage;
+            this.probeMillis = probeMillis;
+            this.decodeMillis = decodeMillis;
+            this.encodeMillis = encodeMillis;
+            this.peakBitmapBytes = peakBitmapBytes;
+            this.encodedBytes = encodedBytes;
+        }
+    }
+
+    private ImageIngest() {
+    }
+
+    /**
+     * Ingests the image in the background and reports back on the main thread.
+     */
+    public static void ingest(Context context, Uri imageUri, Callback callback) {
+        ContentResolver contentResolver = context.getApplicationContext().getContentResolver();
+        AppExecutors.background().execute(() -> {
+            try {
+                Result result = ingestBlocking(contentResolver, imageUri);
+                AppExecutors.runOnMainThread(() -> callback.onIngested(result));
+            } catch (IOException | RuntimeException e) {
+                AppExecutors.runOnMainThread(() -> callback.onFailed(e));
+            }
+        });
+    }
+
+    @WorkerThread
+    public static Result ingestBlocking(ContentResolver contentResolver, Uri imageUri) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream inputStream = contentResolver.openInputStream(imageUri)) {
+            BitmapFactory.decodeStream(inputStream, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unable to read image bounds of " + imageUri);
+        }
+        int orientation = readOrientation(contentResolver, imageUri);
+        boolean swapsAxes = orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+        long probeTime = SystemClock.elapsedRealtime();
+
+        // The avatar width comes from the source height when the photo is stored sideways
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(swapsAxes ? bounds.outHeight : bounds.outWidth);
+        Bitmap sampled;
+        try (InputStream inputStream = contentResolver.openInputStream(imageUri)) {
+            sampled = BitmapFactory.decodeStream(inputStream, null, options);
+        }
+        if (sampled == null) {
+            throw new IOException("Unable to decode " + imageUri);
+        }
+        int orientedWidth = swapsAxes ? sampled.getHeight() : sampled.getWidth();
+        Matrix matrix = orientationMatrix(orientation);
+        float scale = (float) AVATAR_WIDTH / orientedWidth;
+        matrix.postScale(scale, scale);
+        Bitmap preview = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(), sampled.getHeight(), matrix, true);
+        int peakBitmapBytes = sampled.getAllocationByteCount()
+                + (preview != sampled ? preview.getAllocationByteCount() : 0);
+        if (preview != sampled) {
+            sampled.recycle();
+        }
+        long decodeTime = SystemClock.elapsedRealtime();
+
+        byte[] bytes = compressToBudget(preview);
+        String encodedImage = Base64.encodeToString(bytes, Base64.DEFAULT);
+        long encodeTime = SystemClock.elapsedRealtime();
+
+        Result result = new Result(preview, encodedImage, probeTime - startTime, decodeTime - probeTime,
+                encodeTime - decodeTime, peakBitmapBytes, bytes.length);
+        Log.d(TAG, "Ingested " + bounds.outWidth + "x" + bounds.outHeight
+                + " with inSampleSize " + options.inSampleSize
+                + ": probe " + result.probeMillis + " ms, decode " + result.decodeMillis
+                + " ms, encode " + result.encodeMillis + " ms, peak bitmap " + peakBitmapBytes
+                + " bytes, encoded " + bytes.length + " bytes");
+        return result;
+    }
+
+    private static int sampleSizeFor(int sourceWidth) {
+        // Largest power of two that still leaves at least the avatar width to scale down from
+        int sampleSize = 1;
+        while (sourceWidth / (sampleSize * 2) >= AVATAR_WIDTH) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int readOrientation(ContentResolver contentResolver, Uri imageUri) {
+        try (InputStream inputStream = contentResolver.openInputStream(imageUri)) {
+            if (inputStream == null) {
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+            return new ExifInterface(inputStream)
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            // Images without readable EXIF are simply taken as they are stored
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static Matrix orientationMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setRotate(180);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                break;
+        }
+        return matrix;
+    }
+
+    private static byte[] compressToBudget(Bitmap bitmap) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        int quality = START_QUALITY;
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, byteArrayOutputStream);
+        while (byteArrayOutputStream.size() > TARGET_ENCODED_BYTES && quality > MIN_QUALITY) {
+            quality -= QUALITY_STEP;
+            byteArrayOutputStream.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, byteArrayOutputStream);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+}
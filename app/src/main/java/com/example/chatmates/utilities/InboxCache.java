@@ -0,0 +1,98 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.WorkerThread;
+
+import com.example.chatmates.models.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A user's inbox as last synced, stored in {@link ChatMatesDatabase} together with the version it
+ * is current up to. All methods touch the disk and must run off the main thread.
+ */
+@WorkerThread
+public class InboxCache {
+
+    private final ChatMatesDatabase database;
+    private final String ownerId;
+
+    public InboxCache(ChatMatesDatabase database, String ownerId) {
+        this.database = database;
+        this.ownerId = ownerId;
+    }
+
+    public List<ChatMessage> loadAll() {
+        List<ChatMessage> conversations = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(ChatMatesDatabase.TABLE_INBOX,
+                new String[]{ChatMatesDatabase.COLUMN_CONVERSATION_ID, ChatMatesDatabase.COLUMN_PEER_ID,
+                        ChatMatesDatabase.COLUMN_NAME, ChatMatesDatabase.COLUMN_EMAIL,
+                        ChatMatesDatabase.COLUMN_IMAGE_HASH, ChatMatesDatabase.COLUMN_LAST_MESSAGE,
+                        ChatMatesDatabase.COLUMN_TIMESTAMP, ChatMatesDatabase.COLUMN_UNREAD_COUNT},
+                ChatMatesDatabase.COLUMN_OWNER_ID + " = ?", new String[]{ownerId},
+                null, null, ChatMatesDatabase.COLUMN_TIMESTAMP + " DESC")) {
+            while (cursor.moveToNext()) {
+                ChatMessage conversation = new ChatMessage();
+                conversation.conversationId = cursor.getString(0);
+                conversation.conversionId = cursor.getString(1);
+                conversation.conversionName = cursor.getString(2);
+                conversation.conversionEmail = cursor.getString(3);
+                conversation.conversionImageHash = cursor.getString(4);
+                conversation.message = cursor.getString(5);
+                conversation.dateObject = new Date(cursor.getLong(6));
+                conversation.unreadCount = cursor.getInt(7);
+                conversations.add(conversation);
+            }
+        }
+        return conversations;
+    }
+
+    /**
+     * Newest inbox version, in nanoseconds, that the cache contains.
+     */
+    public long getVersion() {
+        return database.getWatermark(syncName());
+    }
+
+    /**
+     * Stores changed entries, drops tombstoned ones and advances the version in one transaction.
+     */
+    public void apply(List<ChatMessage> changed, List<String> deletedIds, long version) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ChatMessage conversation : changed) {
+                ContentValues values = new ContentValues();
+                values.put(ChatMatesDatabase.COLUMN_OWNER_ID, ownerId);
+                values.put(ChatMatesDatabase.COLUMN_CONVERSATION_ID, conversation.conversationId);
+                values.put(ChatMatesDatabase.COLUMN_PEER_ID, conversation.conversionId);
+                values.put(ChatMatesDatabase.COLUMN_NAME, conversation.conversionName);
+                values.put(ChatMatesDatabase.COLUMN_EMAIL, conversation.conversionEmail);
+                values.put(ChatMatesDatabase.COLUMN_IMAGE_HASH, conversation.conversionImageHash);
+                values.put(ChatMatesDatabase.COLUMN_LAST_MESSAGE, conversation.message);
+                values.put(ChatMatesDatabase.COLUMN_TIMESTAMP, conversation.dateObject.getTime());
+                values.put(ChatMatesDatabase.COLUMN_UNREAD_COUNT, conversation.unreadCount);
+                db.insertWithOnConflict(ChatMatesDatabase.TABLE_INBOX, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (String conversationId : deletedIds) {
+                db.delete(ChatMatesDatabase.TABLE_INBOX,
+                        ChatMatesDatabase.COLUMN_OWNER_ID + " = ? AND " + ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?",
+                        new String[]{ownerId, conversationId});
+            }
+            database.putWatermark(db, syncName(), version);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private String syncName() {
+        return "inbox/" + ownerId;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.example.chatmates.models.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Messages of one conversation as last synced, stored in {@link ChatMatesDatabase}. Besides the
+ * watermark, the newest updatedAt the cache contains, it records a floor: from that timestamp on
+ * the cached history has no gaps, so pages above it can be served from disk. All methods touch
+ * the disk and must run off the main thread.
+ */
+@WorkerThread
+public class MessageCache {
+
+    private static final String[] COLUMNS = {ChatMatesDatabase.COLUMN_MESSAGE_ID,
+            ChatMatesDatabase.COLUMN_SENDER_ID, ChatMatesDatabase.COLUMN_RECEIVER_ID,
+            ChatMatesDatabase.COLUMN_MESSAGE, ChatMatesDatabase.COLUMN_TIMESTAMP};
+
+    private final ChatMatesDatabase database;
+    private final String conversationId;
+
+    public MessageCache(ChatMatesDatabase database, String conversationId) {
+        this.database = database;
+        this.conversationId = conversationId;
+    }
+
+    /**
+     * Whether the newest page was ever stored. Until then the cache holds nothing worth showing.
+     */
+    public boolean isSeeded() {
+        return getFloor() != Long.MAX_VALUE;
+    }
+
+    /**
+     * Newest updatedAt, in nanoseconds, that the cache contains.
+     */
+    public long getWatermark() {
+        return database.getWatermark(syncName());
+    }
+
+    /**
+     * Up to {@code limit} of the newest messages, oldest first.
+     */
+    public List<ChatMessage> loadLatest(int limit) {
+        return load(ChatMatesDatabase.COLUMN_TIMESTAMP + " >= ?",
+                new String[]{String.valueOf(getFloor())}, limit);
+    }
+
+    /**
+     * Up to {@code limit} messages sent before the given time, oldest first. Only the gap-free
+     * part of the history is read, so a short page means the rest has to come from the server.
+     */
+    public List<ChatMessage> loadBefore(Date before, int limit) {
+        return load(ChatMatesDatabase.COLUMN_TIMESTAMP + " >= ? AND " + ChatMatesDatabase.COLUMN_TIMESTAMP + " < ?",
+                new String[]{String.valueOf(getFloor()), String.valueOf(before.getTime())}, limit);
+    }
+
+    /**
+     * Stores changed messages and drops deleted ones in one transaction. The watermark only moves
+     * forward and the floor only moves back; pass a null floor for changes that say nothing about
+     * the completeness of the history, like live updates.
+     */
+    public void apply(List<ChatMessage> changed, List<String> deletedIds, long watermark, @Nullable Date floor) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ChatMessage chatMessage : changed) {
+                ContentValues values = new ContentValues();
+                values.put(ChatMatesDatabase.COLUMN_CONVERSATION_ID, conversationId);
+                values.put(ChatMatesDatabase.COLUMN_MESSAGE_ID, chatMessage.sentMessageDocumentId);
+                values.put(ChatMatesDatabase.COLUMN_SENDER_ID, chatMessage.senderId);
+                values.put(ChatMatesDatabase.COLUMN_RECEIVER_ID, chatMessage.receiverId);
+                values.put(ChatMatesDatabase.COLUMN_MESSAGE, chatMessage.message);
+                values.put(ChatMatesDatabase.COLUMN_TIMESTAMP, chatMessage.dateObject.getTime());
+                db.insertWithOnConflict(ChatMatesDatabase.TABLE_MESSAGES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (String messageId : deletedIds) {
+                db.delete(ChatMatesDatabase.TABLE_MESSAGES,
+                        ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ? AND " + ChatMatesDatabase.COLUMN_MESSAGE_ID + " = ?",
+                        new String[]{conversationId, messageId});
+            }
+            if (watermark > getWatermark()) {
+                database.putWatermark(db, syncName(), watermark);
+            }
+            if (floor != null && floor.getTime() < getFloor()) {
+                database.putWatermark(db, floorName(), floor.getTime());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Forgets the conversation, so opening it again starts from the server.
+     */
+    public void clear() {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(ChatMatesDatabase.TABLE_MESSAGES, ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?",
+                    new String[]{conversationId});
+            db.delete(ChatMatesDatabase.TABLE_SYNC_STATE, ChatMatesDatabase.COLUMN_ID + " IN (?, ?)",
+                    new String[]{syncName(), floorName()});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private List<ChatMessage> load(String range, String[] rangeArgs, int limit) {
+        String[] selectionArgs = new String[rangeArgs.length + 1];
+        selectionArgs[0] = conversationId;
+        System.arraycopy(rangeArgs, 0, selectionArgs, 1, rangeArgs.length);
+        List<ChatMessage> messages = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(ChatMatesDatabase.TABLE_MESSAGES, COLUMNS,
+                ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ? AND " + range, selectionArgs,
+                null, null, ChatMatesDatabase.COLUMN_TIMESTAMP + " DESC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                ChatMessage chatMessage = new ChatMessage();
+                chatMessage.sentMessageDocumentId = cursor.getString(0);
+                chatMessage.senderId = cursor.getString(1);
+                chatMessage.receiverId = cursor.getString(2);
+                chatMessage.message = cursor.getString(3);
+                chatMessage.dateObject = new Date(cursor.getLong(4));
+                messages.add(chatMessage);
+            }
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    private long getFloor() {
+        return database.getWatermark(floorName(), Long.MAX_VALUE);
+    }
+
+    private String syncName() {
+        return "messages/" + conversationId;
+    }
+
+    private String floorName() {
+        return "messages/" + conversationId + "/floor";
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.example.chatmates.utilities;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.example.chatmates.models.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Messages of one chat, kept sorted by timestamp and indexed by document id. Every change is
+ * reported to the {@link ListUpdateCallback} as an exact insert, change, move or removal, so the
+ * adapter only animates the rows that actually changed.
+ */
+public class MessageStore {
+
+    // Ties on the timestamp are broken by document id so every message has exactly one position
+    private static final Comparator<ChatMessage> ORDER = (first, second) -> {
+        int byDate = first.dateObject.compareTo(second.dateObject);
+        return byDate != 0 ? byDate : first.sentMessageDocumentId.compareTo(second.sentMessageDocumentId);
+    };
+
+    private final List<ChatMessage> messages = new ArrayList<>();
+    private final Map<String, ChatMessage> messagesById = new HashMap<>();
+    private final Map<String, Long> stableIds = new HashMap<>();
+    private long nextStableId = 0;
+    private ListUpdateCallback updateCallback;
+
+    public void setUpdateCallback(ListUpdateCallback updateCallback) {
+        this.updateCallback = updateCallback;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public ChatMessage get(int position) {
+        return messages.get(position);
+    }
+
+    @Nullable
+    public ChatMessage findById(String documentId) {
+        return messagesById.get(documentId);
+    }
+
+    /**
+     * Returns the position of the message with the given document id, or -1 if it is not stored.
+     */
+    public int positionOf(String documentId) {
+        ChatMessage existing = messagesById.get(documentId);
+        return existing == null ? -1 : Collections.binarySearch(messages, existing, ORDER);
+    }
+
+    public long getStableId(int position) {
+        return stableIds.get(messages.get(position).sentMessageDocumentId);
+    }
+
+    /**
+     * Inserts the message, or replaces the stored message with the same document id and moves it
+     * if its timestamp changed. Returns the position the message ends up at.
+     */
+    public int upsert(ChatMessage message) {
+        ChatMessage existing = messagesById.get(message.sentMessageDocumentId);
+        messagesById.put(message.sentMessageDocumentId, message);
+        if (existing == null) {
+            stableIds.put(message.sentMessageDocumentId, nextStableId++);
+            int position = insertionPoint(message);
+            messages.add(position, message);
+            if (updateCallback != null) {
+                updateCallback.onInserted(position, 1);
+            }
+            return position;
+        }
+        int oldPosition = Collections.binarySearch(messages, existing, ORDER);
+        if (ORDER.compare(existing, message) == 0) {
+            messages.set(oldPosition, message);
+            if (updateCallback != null) {
+                updateCallback.onChanged(oldPosition, 1, null);
+            }
+            return oldPosition;
+        }
+        messages.remove(oldPosition);
+        int newPosition = insertionPoint(message);
+        messages.add(newPosition, message);
+        if (updateCallback != null) {
+            if (oldPosition != newPosition) {
+                updateCallback.onMoved(oldPosition, newPosition);
+            }
+            updateCallback.onChanged(newPosition, 1, null);
+        }
+        return newPosition;
+    }
+
+    /**
+     * Removes the message with the given document id. Returns its former position, or -1 if it
+     * was not stored.
+     */
+    public int remove(String documentId) {
+        ChatMessage existing = messagesById.remove(documentId);
+        if (existing == null) {
+            return -1;
+        }
+        stableIds.remove(documentId);
+        int position = Collections.binarySearch(messages, existing, ORDER);
+        messages.remove(position);
+        if (updateCallback != null) {
+            updateCallback.onRemoved(position, 1);
+        }
+        return position;
+    }
+
+    /**
+     * Removes every stored message among the given document ids and returns the removed messages.
+     * Neighbouring rows are reported as one range removal.
+     */
+    public List<ChatMessage> removeAll(Collection<String> documentIds) {
+        List<Integer> positions = new ArrayList<>();
+        for (String documentId : documentIds) {
+            int position = positionOf(documentId);
+            if (position >= 0) {
+                positions.add(position);
+            }
+        }
+        // Removing from the bottom up keeps the positions still to be removed valid
+        Collections.sort(positions, Collections.reverseOrder());
+        List<ChatMessage> removed = new ArrayList<>();
+        int rangeEnd = -1;
+        int rangeStart = -1;
+        for (int position : positions) {
+            ChatMessage message = messages.remove(position);
+            messagesById.remove(message.sentMessageDocumentId);
+            stableIds.remove(message.sentMessageDocumentId);
+            removed.add(message);
+            if (position != rangeStart - 1) {
+                notifyRemoved(rangeStart, rangeEnd);
+                rangeEnd = position;
+            }
+            rangeStart = position;
+        }
+        notifyRemoved(rangeStart, rangeEnd);
+        return removed;
+    }
+
+    private void notifyRemoved(int rangeStart, int rangeEnd) {
+        if (rangeStart >= 0 && updateCallback != null) {
+            updateCallback.onRemoved(rangeStart, rangeEnd - rangeStart + 1);
+        }
+    }
+
+    /**
+     * Adds a page of history. A page that is entirely older than what is stored, which is the
+     * normal case when scrolling up, becomes a single range insert at the top.
+     */
+    public void addAll(List<ChatMessage> page) {
+        List<ChatMessage> newMessages = new ArrayList<>();
+        for (ChatMessage message : page) {
+            if (!messagesById.containsKey(message.sentMessageDocumentId)) {
+                newMessages.add(message);
+            }
+        }
+        if (newMessages.isEmpty()) {
+            return;
+        }
+        Collections.sort(newMessages, ORDER);
+        if (!messages.isEmpty() && ORDER.compare(newMessages.get(newMessages.size() - 1), messages.get(0)) >= 0) {
+            for (ChatMessage message : newMessages) {
+                upsert(message);
+            }
+            return;
+        }
+        for (ChatMessage message : newMessages) {
+            messagesById.put(message.sentMessageDocumentId, message);
+            stableIds.put(message.sentMessageDocumentId, nextStableId++);
+        }
+        messages.addAll(0, newMessages);
+        if (updateCallback != null) {
+            updateCallback.onInserted(0, newMessages.size());
+        }
+    }
+
+    private int insertionPoint(ChatMessage message) {
+        int index = Collections.binarySearch(messages, message, ORDER);
+        return index >= 0 ? index : -index - 1;
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.example.chatmates.utilities;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+public class NameNormalizer {
+
+    private NameNormalizer() {
+    }
+
+    /**
+     * Form of a name that directory queries match against: accents stripped, lowercased and with
+     * whitespace collapsed, so "  José " and "jose" find the same users. Stored alongside the
+     * name so Firestore can answer prefix searches with an indexed range query.
+     */
+    public static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFKD);
+        return decomposed.replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT)
+                .trim()
+                .replaceAll("\\s+", " ");
+    }
+
+}
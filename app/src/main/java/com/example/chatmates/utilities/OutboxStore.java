@@ -0,0 +1,167 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.WorkerThread;
+
+import com.example.chatmates.models.OutgoingMessage;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Messages that were sent on this device but not yet confirmed by the server, stored in
+ * {@link ChatMatesDatabase} so they survive the app being killed. All methods touch the disk and
+ * must run off the main thread.
+ */
+@WorkerThread
+public class OutboxStore {
+
+    private static final String[] COLUMNS = {ChatMatesDatabase.COLUMN_ID,
+            ChatMatesDatabase.COLUMN_CONVERSATION_ID, ChatMatesDatabase.COLUMN_MESSAGE_ID,
+            ChatMatesDatabase.COLUMN_SENDER_ID, ChatMatesDatabase.COLUMN_RECEIVER_ID,
+            ChatMatesDatabase.COLUMN_MESSAGE, ChatMatesDatabase.COLUMN_TIMESTAMP,
+            ChatMatesDatabase.COLUMN_IS_NEW_CONVERSATION,
+            ChatMatesDatabase.COLUMN_SENDER_NAME, ChatMatesDatabase.COLUMN_SENDER_EMAIL,
+            ChatMatesDatabase.COLUMN_SENDER_IMAGE_HASH, ChatMatesDatabase.COLUMN_RECEIVER_NAME,
+            ChatMatesDatabase.COLUMN_RECEIVER_EMAIL, ChatMatesDatabase.COLUMN_RECEIVER_IMAGE_HASH,
+            ChatMatesDatabase.COLUMN_IS_PARKED};
+    private static final String NOT_PARKED = ChatMatesDatabase.COLUMN_IS_PARKED + " = 0";
+
+    private final ChatMatesDatabase database;
+
+    public OutboxStore(ChatMatesDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Queues the message and fills in its outbox id.
+     */
+    public void add(OutgoingMessage outgoingMessage) {
+        ContentValues values = new ContentValues();
+        values.put(ChatMatesDatabase.COLUMN_CONVERSATION_ID, outgoingMessage.conversationId);
+        values.put(ChatMatesDatabase.COLUMN_MESSAGE_ID, outgoingMessage.messageId);
+        values.put(ChatMatesDatabase.COLUMN_SENDER_ID, outgoingMessage.senderId);
+        values.put(ChatMatesDatabase.COLUMN_RECEIVER_ID, outgoingMessage.receiverId);
+        values.put(ChatMatesDatabase.COLUMN_MESSAGE, outgoingMessage.message);
+        values.put(ChatMatesDatabase.COLUMN_TIMESTAMP, outgoingMessage.dateObject.getTime());
+        values.put(ChatMatesDatabase.COLUMN_IS_NEW_CONVERSATION, outgoingMessage.isNewConversation ? 1 : 0);
+        values.put(ChatMatesDatabase.COLUMN_SENDER_NAME, outgoingMessage.senderName);
+        values.put(ChatMatesDatabase.COLUMN_SENDER_EMAIL, outgoingMessage.senderEmail);
+        values.put(ChatMatesDatabase.COLUMN_SENDER_IMAGE_HASH, outgoingMessage.senderImageHash);
+        values.put(ChatMatesDatabase.COLUMN_RECEIVER_NAME, outgoingMessage.receiverName);
+        values.put(ChatMatesDatabase.COLUMN_RECEIVER_EMAIL, outgoingMessage.receiverEmail);
+        values.put(ChatMatesDatabase.COLUMN_RECEIVER_IMAGE_HASH, outgoingMessage.receiverImageHash);
+        outgoingMessage.outboxId = database.getWritableDatabase().insert(ChatMatesDatabase.TABLE_OUTBOX, null, values);
+    }
+
+    /**
+     * Up to {@code limit} queued messages, in the order they were sent. Parked messages are
+     * skipped.
+     */
+    public List<OutgoingMessage> loadOldest(int limit) {
+        return load(NOT_PARKED, null, String.valueOf(limit));
+    }
+
+    private List<OutgoingMessage> load(String selection, String[] selectionArgs, String limit) {
+        List<OutgoingMessage> messages = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(ChatMatesDatabase.TABLE_OUTBOX, COLUMNS,
+                selection, selectionArgs, null, null, ChatMatesDatabase.COLUMN_ID, limit)) {
+            while (cursor.moveToNext()) {
+                OutgoingMessage outgoingMessage = new OutgoingMessage();
+                outgoingMessage.outboxId = cursor.getLong(0);
+                outgoingMessage.conversationId = cursor.getString(1);
+                outgoingMessage.messageId = cursor.getString(2);
+                outgoingMessage.senderId = cursor.getString(3);
+                outgoingMessage.receiverId = cursor.getString(4);
+                outgoingMessage.message = cursor.getString(5);
+                outgoingMessage.dateObject = new Date(cursor.getLong(6));
+                outgoingMessage.isNewConversation = cursor.getInt(7) != 0;
+                outgoingMessage.senderName = cursor.getString(8);
+                outgoingMessage.senderEmail = cursor.getString(9);
+                outgoingMessage.senderImageHash = cursor.getString(10);
+                outgoingMessage.receiverName = cursor.getString(11);
+                outgoingMessage.receiverEmail = cursor.getString(12);
+                outgoingMessage.receiverImageHash = cursor.getString(13);
+                outgoingMessage.isParked = cursor.getInt(14) != 0;
+                messages.add(outgoingMessage);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Every queued message of one conversation, parked ones included, in the order they were
+     * sent.
+     */
+    public List<OutgoingMessage> loadForConversation(String conversationId) {
+        return load(ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId}, null);
+    }
+
+    public void remove(List<OutgoingMessage> messages) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (OutgoingMessage outgoingMessage : messages) {
+                db.delete(ChatMatesDatabase.TABLE_OUTBOX, ChatMatesDatabase.COLUMN_ID + " = ?",
+                        new String[]{String.valueOf(outgoingMessage.outboxId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Sets the messages aside, so later flushes no longer pick them up.
+     */
+    public void park(List<OutgoingMessage> messages) {
+        ContentValues values = new ContentValues();
+        values.put(ChatMatesDatabase.COLUMN_IS_PARKED, 1);
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (OutgoingMessage outgoingMessage : messages) {
+                db.update(ChatMatesDatabase.TABLE_OUTBOX, values, ChatMatesDatabase.COLUMN_ID + " = ?",
+                        new String[]{String.valueOf(outgoingMessage.outboxId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Queues the parked messages with the given message ids again. Returns how many there were.
+     */
+    public int unpark(List<String> messageIds) {
+        ContentValues values = new ContentValues();
+        values.put(ChatMatesDatabase.COLUMN_IS_PARKED, 0);
+        int unparkedCount = 0;
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String messageId : messageIds) {
+                unparkedCount += db.update(ChatMatesDatabase.TABLE_OUTBOX, values,
+                        ChatMatesDatabase.COLUMN_MESSAGE_ID + " = ? AND " + ChatMatesDatabase.COLUMN_IS_PARKED + " = 1",
+                        new String[]{messageId});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return unparkedCount;
+    }
+
+    /**
+     * Number of queued messages that are not parked.
+     */
+    public int count() {
+        return (int) DatabaseUtils.queryNumEntries(database.getReadableDatabase(), ChatMatesDatabase.TABLE_OUTBOX, NOT_PARKED);
+    }
+
+}
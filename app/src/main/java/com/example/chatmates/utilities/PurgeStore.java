@@ -0,0 +1,98 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conversations whose messages are still being deleted on the server, stored in
+ * {@link ChatMatesDatabase} with how far each purge got. All methods touch the disk and must run
+ * off the main thread.
+ */
+@WorkerThread
+public class PurgeStore {
+
+    // The server has not told yet when the conversation was deleted
+    public static final long CUTOFF_UNRESOLVED = -1;
+
+    public static class Job {
+        public final String conversationId;
+        // User whose inbox tombstone records the deletion time
+        public final String ownerId;
+        // Server time of the deletion in nanoseconds, or CUTOFF_UNRESOLVED. Only messages written
+        // up to this time are purged, so a chat started again afterwards survives.
+        public final long cutoff;
+        public final long deletedCount;
+
+        Job(String conversationId, String ownerId, long cutoff, long deletedCount) {
+            this.conversationId = conversationId;
+            this.ownerId = ownerId;
+            this.cutoff = cutoff;
+            this.deletedCount = deletedCount;
+        }
+    }
+
+    private final ChatMatesDatabase database;
+
+    public PurgeStore(ChatMatesDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Records a purge of the conversation deleted by the owner. A pending purge of the same
+     * conversation resolves its cutoff again, since it was deleted once more.
+     */
+    public void add(String conversationId, String ownerId) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(ChatMatesDatabase.COLUMN_OWNER_ID, ownerId);
+        values.put(ChatMatesDatabase.COLUMN_CUTOFF, CUTOFF_UNRESOLVED);
+        int updated = db.update(ChatMatesDatabase.TABLE_PURGES, values,
+                ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId});
+        if (updated == 0) {
+            values.put(ChatMatesDatabase.COLUMN_CONVERSATION_ID, conversationId);
+            db.insert(ChatMatesDatabase.TABLE_PURGES, null, values);
+        }
+    }
+
+    public List<Job> loadAll() {
+        List<Job> jobs = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(ChatMatesDatabase.TABLE_PURGES,
+                new String[]{ChatMatesDatabase.COLUMN_CONVERSATION_ID, ChatMatesDatabase.COLUMN_OWNER_ID,
+                        ChatMatesDatabase.COLUMN_CUTOFF, ChatMatesDatabase.COLUMN_DELETED_COUNT},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                jobs.add(new Job(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getLong(3)));
+            }
+        }
+        return jobs;
+    }
+
+    public void setCutoff(String conversationId, long cutoff) {
+        ContentValues values = new ContentValues();
+        values.put(ChatMatesDatabase.COLUMN_CUTOFF, cutoff);
+        database.getWritableDatabase().update(ChatMatesDatabase.TABLE_PURGES, values,
+                ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId});
+    }
+
+    /**
+     * Checkpoints a committed chunk.
+     */
+    public void addProgress(String conversationId, int deletedCount) {
+        database.getWritableDatabase().execSQL("UPDATE " + ChatMatesDatabase.TABLE_PURGES
+                        + " SET " + ChatMatesDatabase.COLUMN_DELETED_COUNT + " = " + ChatMatesDatabase.COLUMN_DELETED_COUNT + " + ?"
+                        + " WHERE " + ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?",
+                new Object[]{deletedCount, conversationId});
+    }
+
+    public void remove(String conversationId) {
+        database.getWritableDatabase().delete(ChatMatesDatabase.TABLE_PURGES,
+                ChatMatesDatabase.COLUMN_CONVERSATION_ID + " = ?", new String[]{conversationId});
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.example.chatmates.utilities;
+
+import androidx.annotation.MainThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index for as-you-type filtering of names and emails. Every entry's fields are
+ * normalized with {@link NameNormalizer} and broken into trigrams, plus one and two letter word
+ * prefixes for short queries. A query intersects the postings of its own grams, so it only
+ * verifies the few entries that can match instead of scanning all of them.
+ *
+ * <p>Entries are added and removed as documents arrive. Queries run on a background thread, and
+ * a query superseded by a newer one never delivers its results.
+ */
+public class SearchIndex<T> {
+
+    private static final String PREFIX_MARKER = "^";
+
+    public interface Callback<T> {
+        void onResults(List<T> results);
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final String[] fields;
+
+        Entry(T item, String[] fields) {
+            this.item = item;
+            this.fields = fields;
+        }
+    }
+
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    private final Comparator<T> tieBreaker;
+    private int searchGeneration;
+
+    /**
+     * @param tieBreaker orders entries that match equally well, and all entries for an empty query
+     */
+    public SearchIndex(Comparator<T> tieBreaker) {
+        this.tieBreaker = tieBreaker;
+    }
+
+    /**
+     * Adds or replaces an entry. Earlier fields weigh more in the ranking than later ones.
+     */
+    public synchronized void put(String id, T item, String... fields) {
+        remove(id);
+        String[] normalizedFields = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            normalizedFields[i] = NameNormalizer.normalize(fields[i]);
+            for (String gram : gramsOf(normalizedFields[i])) {
+                Set<String> ids = postings.get(gram);
+                if (ids == null) {
+                    ids = new HashSet<>();
+                    postings.put(gram, ids);
+                }
+                ids.add(id);
+            }
+        }
+        entries.put(id, new Entry<>(item, normalizedFields));
+    }
+
+    public synchronized void remove(String id) {
+        Entry<T> entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        for (String field : entry.fields) {
+            for (String gram : gramsOf(field)) {
+                Set<String> ids = postings.get(gram);
+                if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        postings.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Runs the query on a background thread and delivers the ranked results on the main thread,
+     * unless another search was started in the meantime.
+     */
+    @MainThread
+    public void searchAsync(String query, Callback<T> callback) {
+        int generation = ++searchGeneration;
+        AppExecutors.background().execute(() -> {
+            List<T> results = search(query);
+            AppExecutors.runOnMainThread(() -> {
+                if (generation == searchGeneration) {
+                    callback.onResults(results);
+                }
+            });
+        });
+    }
+
+    /**
+     * Returns the entries matching the query, best match first.
+     */
+    public synchronized List<T> search(String query) {
+        String normalizedQuery = NameNormalizer.normalize(query);
+        List<Entry<T>> candidates = new ArrayList<>();
+        if (normalizedQuery.isEmpty()) {
+            candidates.addAll(entries.values());
+        } else {
+            for (String id : candidateIds(normalizedQuery)) {
+                candidates.add(entries.get(id));
+            }
+        }
+        List<ScoredEntry<T>> matches = new ArrayList<>();
+        for (Entry<T> candidate : candidates) {
+            int score = scoreOf(candidate, normalizedQuery);
+            if (score > 0) {
+                matches.add(new ScoredEntry<>(candidate.item, score));
+            }
+        }
+        Collections.sort(matches, (first, second) -> {
+            if (first.score != second.score) {
+                return Integer.compare(second.score, first.score);
+            }
+            return tieBreaker.compare(first.item, second.item);
+        });
+        List<T> results = new ArrayList<>(matches.size());
+        for (ScoredEntry<T> match : matches) {
+            results.add(match.item);
+        }
+        return results;
+    }
+
+    private Set<String> candidateIds(String query) {
+        List<String> queryGrams = new ArrayList<>();
+        if (query.length() < 3) {
+            queryGrams.add(PREFIX_MARKER + query);
+        } else {
+            queryGrams.addAll(trigramsOf(query));
+        }
+        // Intersecting from the rarest gram keeps the working set small
+        List<Set<String>> postingLists = new ArrayList<>();
+        for (String gram : queryGrams) {
+            Set<String> ids = postings.get(gram);
+            if (ids == null) {
+                return Collections.emptySet();
+            }
+            postingLists.add(ids);
+        }
+        Collections.sort(postingLists, (first, second) -> Integer.compare(first.size(), second.size()));
+        Set<String> candidates = new HashSet<>(postingLists.get(0));
+        for (int i = 1; i < postingLists.size() && !candidates.isEmpty(); i++) {
+            candidates.retainAll(postingLists.get(i));
+        }
+        return candidates;
+    }
+
+    private static int scoreOf(Entry<?> entry, String query) {
+        if (query.isEmpty()) {
+            return 1;
+        }
+        // Later fields are worth less, and within a field an exact match beats a prefix, which
+        // beats a word prefix, which beats a match inside a word
+        int best = 0;
+        for (int i = 0; i < entry.fields.length; i++) {
+            String field = entry.fields[i];
+            int weight = (entry.fields.length - i) * 10;
+            int score;
+            if (field.equals(query)) {
+                score = weight + 4;
+            } else if (field.startsWith(query)) {
+                score = weight + 3;
+            } else if (field.contains(" " + query)) {
+                score = weight + 2;
+            } else if (field.contains(query)) {
+                score = weight + 1;
+            } else {
+                score = 0;
+            }
+            best = Math.max(best, score);
+        }
+        return best;
+    }
+
+    private static Set<String> gramsOf(String field) {
+        Set<String> grams = new HashSet<>(trigramsOf(field));
+        for (String word : field.split(" ")) {
+            for (int length = 1; length <= Math.min(2, word.length()); length++) {
+                grams.add(PREFIX_MARKER + word.substring(0, length));
+            }
+        }
+        return grams;
+    }
+
+    private static List<String> trigramsOf(String text) {
+        List<String> trigrams = new ArrayList<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            trigrams.add(text.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private static class ScoredEntry<T> {
+        final T item;
+        final int score;
+
+        ScoredEntry(T item, int score) {
+            this.item = item;
+            this.score = score;
+        }
+    }
+
+}
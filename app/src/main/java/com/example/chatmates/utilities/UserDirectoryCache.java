@@ -0,0 +1,103 @@
+package com.example.chatmates.utilities;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.WorkerThread;
+
+import com.example.chatmates.models.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The user directory as last synced, stored in {@link ChatMatesDatabase}. All methods touch the
+ * disk and must run off the main thread.
+ */
+@WorkerThread
+public class UserDirectoryCache {
+
+    private static final String SYNC_NAME = "userSummaries";
+
+    private final ChatMatesDatabase database;
+
+    public UserDirectoryCache(ChatMatesDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * The first users of the directory in name order, to show while the server page loads.
+     */
+    public List<User> loadFirstPage(int limit) {
+        List<User> users = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(ChatMatesDatabase.TABLE_USERS,
+                new String[]{ChatMatesDatabase.COLUMN_ID, ChatMatesDatabase.COLUMN_NAME,
+                        ChatMatesDatabase.COLUMN_EMAIL, ChatMatesDatabase.COLUMN_IMAGE_HASH},
+                null, null, null, null, ChatMatesDatabase.COLUMN_NAME_LOWERCASE, String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                User user = new User();
+                user.id = cursor.getString(0);
+                user.name = cursor.getString(1);
+                user.email = cursor.getString(2);
+                user.imageHash = cursor.getString(3);
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Server time, in milliseconds, of the newest change the cache is known to contain.
+     */
+    public long getWatermark() {
+        return database.getWatermark(SYNC_NAME);
+    }
+
+    /**
+     * Stores a page of changed users and advances the watermark in one transaction, so a crash
+     * never leaves the watermark ahead of the rows it covers.
+     */
+    public void merge(List<User> users, List<Long> updatedAtMillis, long watermark) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < users.size(); i++) {
+                put(db, users.get(i), updatedAtMillis.get(i));
+            }
+            database.putWatermark(db, SYNC_NAME, watermark);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Stores users seen outside the sync, such as server search results, without moving the
+     * watermark.
+     */
+    public void putAll(List<User> users, List<Long> updatedAtMillis) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < users.size(); i++) {
+                put(db, users.get(i), updatedAtMillis.get(i));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void put(SQLiteDatabase db, User user, long updatedAtMillis) {
+        ContentValues values = new ContentValues();
+        values.put(ChatMatesDatabase.COLUMN_ID, user.id);
+        values.put(ChatMatesDatabase.COLUMN_NAME, user.name);
+        values.put(ChatMatesDatabase.COLUMN_NAME_LOWERCASE, NameNormalizer.normalize(user.name));
+        values.put(ChatMatesDatabase.COLUMN_EMAIL, user.email);
+        values.put(ChatMatesDatabase.COLUMN_IMAGE_HASH, user.imageHash);
+        values.put(ChatMatesDatabase.COLUMN_UPDATED_AT, updatedAtMillis);
+        db.insertWithOnConflict(ChatMatesDatabase.TABLE_USERS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+}